@@ -0,0 +1,70 @@
+package it.azraelsec.Benchmark;
+
+import it.azraelsec.Protocol.RemoteRegistration;
+
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+
+/**
+ * The {@code RegistrationBenchmark} class measures the registration throughput of a running {@code Server},
+ * comparing a sequence of {@code register} calls with a single {@code registerAll} for the same number of
+ * new users.
+ * <p>
+ * It is not part of the Maven build: compile it against the project classes and run it while the
+ * {@code Server} is up, with a throttling capacity large enough for all the attempts
+ * (e.g. {@code "THROTTLE_CAPACITY": 1000000}):
+ * <pre>
+ * javac -cp target/classes -d target/bench src/bench/java/it/azraelsec/Benchmark/RegistrationBenchmark.java
+ * java -cp target/classes:target/bench it.azraelsec.Benchmark.RegistrationBenchmark [host] [port] [users] [rounds]
+ * </pre>
+ *
+ * @author Federico Gerardi
+ * @author https://azraelsec.github.io/
+ */
+public class RegistrationBenchmark {
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "127.0.0.1";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 3400;
+        int users = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+        Registry registry = LocateRegistry.getRegistry(host, port);
+        RemoteRegistration registration = (RemoteRegistration) registry.lookup(RemoteRegistration.NAME);
+        String prefix = "bench" + Long.toString(System.currentTimeMillis(), 36);
+        registration.register(prefix + "warmup", "password");
+        for (int round = 0; round < rounds; round++) {
+            String[] usernames = new String[users];
+            String[] passwords = new String[users];
+            for (int i = 0; i < users; i++) {
+                usernames[i] = prefix + "r" + round + "s" + i;
+                passwords[i] = "password" + i;
+            }
+            long start = System.nanoTime();
+            int registered = 0;
+            for (int i = 0; i < users; i++)
+                if (registration.register(usernames[i], passwords[i])) registered++;
+            report("register", registered, users, System.nanoTime() - start);
+
+            for (int i = 0; i < users; i++)
+                usernames[i] = prefix + "r" + round + "b" + i;
+            start = System.nanoTime();
+            registered = 0;
+            for (boolean result : registration.registerAll(usernames, passwords))
+                if (result) registered++;
+            report("registerAll", registered, users, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Prints the results of a measurement.
+     *
+     * @param method    measured method name
+     * @param registered    number of users registered
+     * @param users number of users sent
+     * @param elapsed   elapsed time (in nanoseconds)
+     */
+    private static void report(String method, int registered, int users, long elapsed) {
+        double millis = elapsed / 1e6;
+        System.out.println(String.format("%-12s %d/%d users in %.1f ms (%.0f users/s)",
+                method, registered, users, millis, users / (millis / 1000)));
+    }
+}
@@ -0,0 +1,34 @@
+package it.azraelsec.Server;
+
+/**
+ * The {@code LoginHashingBenchmark} class measures the cost of the password verification, timing batches
+ * of logins checked against the same {@code User} on the calling thread.
+ * <p>
+ * It is not part of the Maven build: compile it against the project classes and run it as it is
+ * (it only uses the {@code User} methods, so it also runs against older builds):
+ * <pre>
+ * javac -cp target/classes -d target/bench src/bench/java/it/azraelsec/Server/LoginHashingBenchmark.java
+ * java -cp target/classes:target/bench it.azraelsec.Server.LoginHashingBenchmark [logins] [rounds]
+ * </pre>
+ *
+ * @author Federico Gerardi
+ * @author https://azraelsec.github.io/
+ */
+public class LoginHashingBenchmark {
+    public static void main(String[] args) {
+        int logins = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        User user = new User("benchmark", "password");
+        int accepted = 0;
+        for (int i = 0; i < logins; i++)
+            if (user.checkPassword("password")) accepted++;
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < logins; i++)
+                if (user.checkPassword(i % 2 == 0 ? "password" : "wrong")) accepted++;
+            double millis = (System.nanoTime() - start) / 1e6;
+            System.out.println(String.format("%d logins in %.2f ms (%.1f us/login)", logins, millis, millis * 1000 / logins));
+        }
+        if (accepted == 0) System.out.println("no login accepted");
+    }
+}
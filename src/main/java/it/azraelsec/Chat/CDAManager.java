@@ -4,16 +4,25 @@ import it.azraelsec.Document.Document;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.BitSet;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The {@code CDAManager} class is a Chat Dynamic Address Manager and its task is to
  * dynamically generate and assign multicast IPv4 addresses when the {@code Server} needs it.
  * <p>
- * It stores all the records ({@code Document}, {@code Long}) (where {@code Long} is the group
- * IPv4 expressed in decimal) and when a request comes, it looks for a pre-existent row
- * assigned to that Document; if it cannot find it, creates a new one and looks for the first
- * free address (using and incremental approach), sending it back to the requester.
+ * It stores all the records ({@code Document}, {@code ChatGroup}), where the group holds the
+ * IPv4 address expressed in decimal and the number of the active editors. The addresses are
+ * allocated from a bitmap over the whole multicast range, scanned from the last allocated
+ * position, so that both the allocation and the release take constant time (amortized).
+ * <p>
+ * Every editor acquires the document's address when it starts editing and releases it when it
+ * stops: the address goes back to the bitmap exactly when the last editor leaves.
+ * <p>
+ * If a {@code ChatArchiver} has been set, it joins every group as soon as it is assigned and leaves it
+ * before its address can be reused. The archiver is called after the group has been updated, never
+ * from within the {@code ConcurrentHashMap} atomic methods: the released address goes back to the
+ * bitmap only after the archiver has left it, so it cannot be joined again in the meantime.
  *
  * @author Federico Gerardi
  * @author https://azraelsec.github.io/
@@ -25,51 +34,110 @@ public class CDAManager {
      */
     private static final long BASE_MULTICAST_ADDR = 4009754625L;
     private static final long BOUND_MULTICAST_ADDR = 4026531838L;
+    private static final int ADDRESSES_NUMBER = (int) (BOUND_MULTICAST_ADDR - BASE_MULTICAST_ADDR + 1);
 
-    private final ConcurrentHashMap<Document, Long> chatDatabase;
+    private final ConcurrentHashMap<Document, ChatGroup> chatDatabase;
+    private final BitSet allocatedAddresses;
+    private int nextAddress;
+    private volatile ChatArchiver chatArchiver;
 
     /**
-     * Initializes the {@code ChatMessage} internal {@code ConcurrentHashMap}
+     * Initializes the {@code ChatMessage} internal {@code ConcurrentHashMap} and the addresses bitmap.
      */
     public CDAManager() {
         chatDatabase = new ConcurrentHashMap<>();
+        allocatedAddresses = new BitSet();
+        nextAddress = 0;
+        chatArchiver = null;
     }
 
-    //return -1 if no address is available
+    /**
+     * Sets the {@code ChatArchiver} which stores the messages sent to the groups.
+     *
+     * @param chatArchiver  chat archiver (null to disable archiving)
+     */
+    public void setChatArchiver(ChatArchiver chatArchiver) {
+        this.chatArchiver = chatArchiver;
+    }
+
+    /**
+     * Gets the {@code ChatArchiver} which stores the messages sent to the groups.
+     *
+     * @return  the chat archiver or null if archiving is disabled
+     */
+    public ChatArchiver getChatArchiver() {
+        return chatArchiver;
+    }
 
     /**
      * Returns the {@code long} value corresponding to the pre-existent group
-     * IPv4 address or the new one based on the number of the actual editors
-     * on the {@code Document} required.
+     * IPv4 address or a new one if nobody is editing the {@code Document} yet,
+     * and counts the requester as one of its editors.
      * <p>
      * If no address are available in the multicast address space, the return
-     * value will be set to (-1).
+     * value will be set to (-1) and nothing is counted.
      *
-     * This
      * @param document  the {@code Document} the requester is editing
      * @return  the document's multicast group IPv4 address or (-1) in case of error
      */
-    public long getChatAddress(Document document) {
-        Long lookedup = null;
-        if((lookedup = chatDatabase.get(document)) != null) return lookedup;
-        for(lookedup = BASE_MULTICAST_ADDR; lookedup <= BOUND_MULTICAST_ADDR; lookedup++)
-            if(!chatDatabase.contains(lookedup)) {
-                chatDatabase.put(document, lookedup);
-                return lookedup;
+    public long acquireChatAddress(Document document) {
+        boolean[] assigned = {false};
+        ChatGroup group = chatDatabase.compute(document, (ignore, actual) -> {
+            if(actual == null) {
+                long address = allocate();
+                if(address < 0) return null;
+                actual = new ChatGroup(address);
+                assigned[0] = true;
             }
-        return -1L;
+            actual.editors++;
+            return actual;
+        });
+        if(group == null) return -1L;
+        ChatArchiver archiver = chatArchiver;
+        if(assigned[0] && archiver != null) archiver.join(document.getName(), group.address);
+        return group.address;
+    }
+
+    /**
+     * Releases the {@code Document}'s address on behalf of one of its editors. When the last
+     * editor leaves, the {@code ChatArchiver} leaves the group and the address becomes available again.
+     *
+     * @param document  the {@code Document} the requester is not editing anymore
+     */
+    public void releaseChatAddress(Document document) {
+        long[] released = {-1L};
+        chatDatabase.computeIfPresent(document, (ignore, actual) -> {
+            if(--actual.editors > 0) return actual;
+            released[0] = actual.address;
+            return null;
+        });
+        if(released[0] < 0) return;
+        ChatArchiver archiver = chatArchiver;
+        if(archiver != null) archiver.leave(released[0]);
+        free(released[0]);
+    }
+
+    /**
+     * Allocates the first free address after the last allocated one, wrapping around the range.
+     *
+     * @return  the allocated address or (-1) if the range is exhausted
+     */
+    private synchronized long allocate() {
+        int index = allocatedAddresses.nextClearBit(nextAddress);
+        if(index >= ADDRESSES_NUMBER) index = allocatedAddresses.nextClearBit(0);
+        if(index >= ADDRESSES_NUMBER) return -1L;
+        allocatedAddresses.set(index);
+        nextAddress = index + 1 < ADDRESSES_NUMBER ? index + 1 : 0;
+        return BASE_MULTICAST_ADDR + index;
     }
 
     /**
-     * Checks if the {@code Document} in argument exists within the assigned
-     * addresses' list and, in this case, it removes it.
-     * @param document  to remove document
+     * Gives an address back to the bitmap.
+     *
+     * @param address   the address to free
      */
-    public void checkRemove(Document document) {
-        Long lookedup = chatDatabase.get(document);
-        if(lookedup != null)
-            if(document.getOnEditingSections().length == 0)
-                chatDatabase.remove(document);
+    private synchronized void free(long address) {
+        allocatedAddresses.clear((int) (address - BASE_MULTICAST_ADDR));
     }
 
     /**
@@ -99,8 +167,31 @@ public class CDAManager {
      * @return  the converted address
      * @throws UnknownHostException if address is not a valid value
      */
-    static InetAddress decimalToAddress(long address) throws UnknownHostException {
+    public static InetAddress decimalToAddress(long address) throws UnknownHostException {
         return InetAddress.getByName(String.valueOf(address));
     }
-}
 
+    /**
+     * The {@code ChatGroup} class represents the multicast group assigned to a {@code Document} and
+     * the number of its active editors.
+     * <p>
+     * It is only accessed within the {@code ConcurrentHashMap} atomic methods.
+     *
+     * @author Federico Gerardi
+     * @author https://azraelsec.github.io/
+     */
+    private static class ChatGroup {
+        private final long address;
+        private int editors;
+
+        /**
+         * Initializes the {@code ChatGroup} with no editors.
+         *
+         * @param address   the group IPv4 address in decimal
+         */
+        ChatGroup(long address) {
+            this.address = address;
+            editors = 0;
+        }
+    }
+}
@@ -0,0 +1,540 @@
+package it.azraelsec.Chat;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The {@code ChatArchiver} class is a server-side Thread which listens to the multicast groups assigned
+ * by the {@code CDAManager} and stores their {@code ChatMessage}s, so that the chat history of a
+ * {@code Document} can be read by anyone later on.
+ * <p>
+ * Every group is received through its own {@code DatagramChannel}, bound to the group address, and all
+ * the channels are served by a single {@code Selector}. The {@code CDAManager} asks the archiver to join
+ * and leave the groups through a queue of tasks, so that it never waits for the archiver thread.
+ * <p>
+ * Each document has got an append-only log, where every record is made up by the archiving timestamp,
+ * the sending timestamp and the raw sender and text (each one preceded by its length), and a sparse
+ * index holding the archiving timestamp and the offset of one record every {@code INDEX_INTERVAL}.
+ * The archiving timestamps never go back within a log, so a time range is found through a binary
+ * search on the index and a short scan of the log.
+ * <p>
+ * The archiver does not ask for the missing messages: a message lost on the way is not archived. The repairs
+ * asked for by the {@code MessageReceiver}s are sent to the whole group, though, so every log tracks the
+ * sequence numbers it has archived for each sender session, within the last {@code DEDUP_WINDOW} ones, and
+ * drops the messages it has already got. The fragmented messages are archived once they have been put
+ * back together, and given up if they are still incomplete after {@code REASSEMBLY_TIMEOUT}.
+ * <p>
+ * The file names are the hex encoding of the document names.
+ *
+ * @author Federico Gerardi
+ * @author https://azraelsec.github.io/
+ */
+public class ChatArchiver extends Thread {
+    public static final int PAGE_SIZE = 50;
+    private static final int INDEX_INTERVAL = 64;
+    private static final int INDEX_ENTRY_SIZE = 2 * Long.BYTES;
+    private static final int RECORD_HEADER_SIZE = 2 * Long.BYTES;
+    private static final int BUFFER_SIZE = 2048;
+    private static final long REASSEMBLY_TIMEOUT = 5000;
+    private static final int MAX_REASSEMBLIES = 16;
+    private static final int DEDUP_WINDOW = 1024;
+    private static final int MAX_SESSIONS = 64;
+    private static final String LOG_EXTENSION = ".log";
+    private static final String INDEX_EXTENSION = ".idx";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private final File directory;
+    private final int port;
+    private final Queue<Runnable> pendingTasks;
+    private final Map<Long, SelectionKey> groups;
+    private final Selector selector;
+
+    /**
+     * Initializes the {@code ChatArchiver}, creating its directory if it does not exist.
+     *
+     * @param directory archive directory path
+     * @param port  UDP port the chat messages are sent to
+     * @throws IOException  if the directory or the {@code Selector} cannot be initialized
+     */
+    public ChatArchiver(String directory, int port) throws IOException {
+        super("ChatArchiver");
+        setDaemon(true);
+        this.directory = new File(directory);
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) throw new IOException("Cannot create " + directory);
+        this.port = port;
+        pendingTasks = new ConcurrentLinkedQueue<>();
+        groups = new HashMap<>();
+        selector = Selector.open();
+    }
+
+    /**
+     * Starts archiving the messages sent to the group.
+     *
+     * @param document  name of the {@code Document} the group has been assigned to
+     * @param address   group IPv4 address in decimal
+     */
+    public void join(String document, long address) {
+        submit(() -> {
+            try {
+                InetAddress group = CDAManager.decimalToAddress(address);
+                DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+                try {
+                    channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                    channel.bind(new InetSocketAddress(group, port));
+                    channel.join(group, NetworkInterface.getByInetAddress(InetAddress.getLocalHost()));
+                    channel.configureBlocking(false);
+                    groups.put(address, channel.register(selector, SelectionKey.OP_READ, new ArchiveLog(document)));
+                } catch (IOException ex) {
+                    channel.close();
+                    throw ex;
+                }
+            } catch (IOException ex) {
+                System.out.println("Cannot archive the chat of " + document + ": " + ex.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Stops archiving the messages sent to the group.
+     *
+     * @param address   group IPv4 address in decimal
+     */
+    public void leave(long address) {
+        submit(() -> {
+            SelectionKey key = groups.remove(address);
+            if (key != null) close(key);
+        });
+    }
+
+    /**
+     * Queues a task for the archiver thread and wakes it up.
+     *
+     * @param task  task to run
+     */
+    private void submit(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Serves the groups until the thread is interrupted.
+     */
+    @Override
+    public void run() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Runnable task;
+                while ((task = pendingTasks.poll()) != null)
+                    task.run();
+                selector.select(REASSEMBLY_TIMEOUT);
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (key.isValid() && key.isReadable()) onRead(key, buffer);
+                }
+                long now = System.currentTimeMillis();
+                for (SelectionKey key : groups.values())
+                    ((ArchiveLog) key.attachment()).reassembler.expire(now);
+            }
+        } catch (IOException ex) {
+            System.out.println("ChatArchiver is dead");
+            ex.printStackTrace();
+        } finally {
+            for (SelectionKey key : groups.values())
+                close(key);
+            try {
+                selector.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    /**
+     * Receives the pending datagrams of a group and archives their records.
+     *
+     * @param key   group key
+     * @param buffer    receiving buffer
+     */
+    private void onRead(SelectionKey key, ByteBuffer buffer) {
+        DatagramChannel channel = (DatagramChannel) key.channel();
+        ArchiveLog log = (ArchiveLog) key.attachment();
+        try {
+            buffer.clear();
+            while (channel.receive(buffer) != null) {
+                buffer.flip();
+                log.append(buffer);
+                buffer.clear();
+            }
+        } catch (IOException ex) {
+            System.out.println("Cannot archive the chat of " + log.document + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Closes a group channel and its log.
+     *
+     * @param key   group key
+     */
+    private void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignore) {
+        }
+        ((ArchiveLog) key.attachment()).close();
+    }
+
+    /**
+     * Reads a page of the chat history of a {@code Document}: the messages archived between the two
+     * timestamps, up to {@code PAGE_SIZE} of them. The page is extended to the messages archived at the
+     * same moment of its last one, so that the next page can start right after it.
+     * <p>
+     * The returned messages carry their archiving timestamp.
+     *
+     * @param document  document name
+     * @param from  lower bound of the archiving timestamps (inclusive)
+     * @param to    upper bound of the archiving timestamps (inclusive)
+     * @param page  list the read messages are added to
+     * @return  the lower bound of the next page or (-1) if there are no more messages in the range
+     * @throws IOException  if an I/O error occurs
+     */
+    public long readHistory(String document, long from, long to, List<ChatMessage> page) throws IOException {
+        File log = getFile(document, LOG_EXTENSION);
+        if (!log.exists()) return -1;
+        long offset = findOffset(getFile(document, INDEX_EXTENSION), from);
+        try (FileInputStream file = new FileInputStream(log)) {
+            file.getChannel().position(offset);
+            DataInputStream input = new DataInputStream(new BufferedInputStream(file));
+            long last = -1;
+            while (true) {
+                long archiveTime;
+                String sender;
+                byte[] text;
+                try {
+                    archiveTime = input.readLong();
+                    input.readLong();
+                    sender = new String(readBytes(input), StandardCharsets.UTF_8);
+                    text = readBytes(input);
+                } catch (EOFException ex) {
+                    return -1;
+                }
+                if (archiveTime < from) continue;
+                if (archiveTime > to) return -1;
+                if (page.size() >= PAGE_SIZE && archiveTime != last) return archiveTime;
+                page.add(new ChatMessage(sender, text, archiveTime, 0, 0, 0));
+                last = archiveTime;
+            }
+        }
+    }
+
+    /**
+     * Finds the offset of the last indexed record archived before the timestamp, through a binary
+     * search on the sparse index.
+     *
+     * @param index document's index
+     * @param time  timestamp to look for
+     * @return  the offset to start the scan from (0 if there is none)
+     * @throws IOException  if an I/O error occurs
+     */
+    private long findOffset(File index, long time) throws IOException {
+        if (!index.exists()) return 0;
+        try (RandomAccessFile input = new RandomAccessFile(index, "r")) {
+            long low = 0;
+            long high = input.length() / INDEX_ENTRY_SIZE - 1;
+            long offset = 0;
+            while (low <= high) {
+                long middle = (low + high) >>> 1;
+                input.seek(middle * INDEX_ENTRY_SIZE);
+                if (input.readLong() < time) {
+                    offset = input.readLong();
+                    low = middle + 1;
+                } else high = middle - 1;
+            }
+            return offset;
+        }
+    }
+
+    /**
+     * Reads a length-prefixed field of a record.
+     *
+     * @param input log stream
+     * @return  the field bytes
+     * @throws IOException  if an I/O error occurs or the log ends up
+     */
+    private static byte[] readBytes(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0 || length > MessageSender.MAX_RECORD_SIZE) throw new IOException("Corrupted chat archive");
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Gets one of the document's files.
+     *
+     * @param document  document name
+     * @param extension file extension
+     * @return  the file
+     */
+    private File getFile(String document, String extension) {
+        byte[] bytes = document.getBytes(StandardCharsets.UTF_8);
+        char[] name = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            name[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            name[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new File(directory, new String(name) + extension);
+    }
+
+    /**
+     * The {@code ArchiveLog} class holds the open files of a document whose chat is being archived.
+     * It is only accessed by the archiver thread.
+     *
+     * @author Federico Gerardi
+     * @author https://azraelsec.github.io/
+     */
+    private class ArchiveLog {
+        private final String document;
+        private final FileChannel log;
+        private final FileChannel index;
+        private final ByteBuffer header;
+        private final FragmentReassembler reassembler;
+        private final Map<Integer, ArchivedSequences> sessions;
+        private long lastTime;
+        private long records;
+
+        /**
+         * Opens the document's files, creating them if they do not exist.
+         *
+         * @param document  document name
+         * @throws IOException  if an I/O error occurs
+         */
+        ArchiveLog(String document) throws IOException {
+            this.document = document;
+            log = FileChannel.open(getFile(document, LOG_EXTENSION).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            try {
+                index = FileChannel.open(getFile(document, INDEX_EXTENSION).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            } catch (IOException ex) {
+                log.close();
+                throw ex;
+            }
+            header = ByteBuffer.allocate(Math.max(RECORD_HEADER_SIZE, INDEX_ENTRY_SIZE));
+            reassembler = new FragmentReassembler(REASSEMBLY_TIMEOUT, MAX_REASSEMBLIES);
+            sessions = new LinkedHashMap<Integer, ArchivedSequences>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, ArchivedSequences> eldest) {
+                    return size() > MAX_SESSIONS;
+                }
+            };
+            lastTime = readLastIndexedTime();
+            records = 0;
+        }
+
+        /**
+         * Reads the timestamp of the last index entry, so that the archiving timestamps never go back.
+         *
+         * @return  the last indexed timestamp (0 if the index is empty)
+         * @throws IOException  if an I/O error occurs
+         */
+        private long readLastIndexedTime() throws IOException {
+            long size = index.size() - index.size() % INDEX_ENTRY_SIZE;
+            if (size == 0) return 0;
+            header.clear().limit(Long.BYTES);
+            index.read(header, size - INDEX_ENTRY_SIZE);
+            header.flip();
+            return header.remaining() == Long.BYTES ? header.getLong() : 0;
+        }
+
+        /**
+         * Appends all the well-formed records of a data datagram, or the record completed by a fragment.
+         * The other datagrams are ignored, as well as the fragments of the messages already archived.
+         *
+         * @param datagram  received datagram (in read mode)
+         * @throws IOException  if an I/O error occurs
+         */
+        void append(ByteBuffer datagram) throws IOException {
+            if (datagram.remaining() < MessageSender.DATA_HEADER_SIZE) return;
+            byte type = datagram.get();
+            datagram.getInt();
+            int session = datagram.getInt();
+            long sequence = datagram.getLong();
+            if (type == MessageSender.DATA) appendRecords(datagram, session, sequence);
+            else if (type == MessageSender.FRAGMENT && datagram.remaining() >= MessageSender.FRAGMENT_HEADER_SIZE - MessageSender.DATA_HEADER_SIZE) {
+                int index = datagram.getInt();
+                int count = datagram.getInt();
+                ArchivedSequences archived = sessions.get(session);
+                if (archived != null && archived.contains(sequence)) return;
+                byte[] record = reassembler.add(session, sequence, index, count, datagram);
+                if (record != null) appendRecords(ByteBuffer.wrap(record), session, sequence);
+            }
+        }
+
+        /**
+         * Appends all the well-formed records of the buffer which have not been archived yet, indexing one
+         * of them every {@code INDEX_INTERVAL}.
+         *
+         * @param datagram  message records (in read mode)
+         * @param session   sender session
+         * @param sequence  sequence number of the first record
+         * @throws IOException  if an I/O error occurs
+         */
+        private void appendRecords(ByteBuffer datagram, int session, long sequence) throws IOException {
+            ArchivedSequences archived = sessions.computeIfAbsent(session, ignore -> new ArchivedSequences());
+            long now = Math.max(lastTime, System.currentTimeMillis());
+            while (datagram.hasRemaining()) {
+                int start = datagram.position();
+                int fieldsEnd;
+                long sendingTime;
+                try {
+                    skipField(datagram);
+                    skipField(datagram);
+                    fieldsEnd = datagram.position();
+                    sendingTime = datagram.getLong();
+                    if (datagram.remaining() < MessageSender.RECORD_TRAILER_SIZE - Long.BYTES) return;
+                } catch (BufferUnderflowException ex) {
+                    return;
+                }
+                int end = fieldsEnd + MessageSender.RECORD_TRAILER_SIZE;
+                if (!archived.add(sequence++)) {
+                    datagram.position(end);
+                    continue;
+                }
+                if (records++ % INDEX_INTERVAL == 0) {
+                    header.clear();
+                    header.putLong(now).putLong(log.size()).flip();
+                    index.write(header, index.size());
+                }
+                header.clear();
+                header.putLong(now).putLong(sendingTime).flip();
+                ByteBuffer fields = datagram.duplicate();
+                fields.position(start).limit(fieldsEnd);
+                log.write(new ByteBuffer[] {header, fields});
+                datagram.position(end);
+            }
+            lastTime = now;
+        }
+
+        /**
+         * Skips a length-prefixed field of a datagram record.
+         *
+         * @param datagram  received datagram (in read mode)
+         */
+        private void skipField(ByteBuffer datagram) {
+            int length = datagram.getInt();
+            if (length < 0 || length > datagram.remaining()) throw new BufferUnderflowException();
+            datagram.position(datagram.position() + length);
+        }
+
+        /**
+         * Closes the document's files.
+         */
+        void close() {
+            try {
+                log.close();
+                index.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    /**
+     * The {@code ArchivedSequences} class tracks the sequence numbers of a sender session which have been
+     * archived, within the last {@code DEDUP_WINDOW} ones: the older ones cannot be repaired by the sender
+     * anymore, so they are considered as archived.
+     *
+     * @author Federico Gerardi
+     * @author https://azraelsec.github.io/
+     */
+    private static class ArchivedSequences {
+        private final long[] window;
+        private long highestSequence;
+        private boolean started;
+
+        /**
+         * Initializes an empty {@code ArchivedSequences}.
+         */
+        ArchivedSequences() {
+            window = new long[DEDUP_WINDOW / Long.SIZE];
+            highestSequence = 0;
+            started = false;
+        }
+
+        /**
+         * Checks whether a message has already been archived.
+         *
+         * @param sequence  message sequence number
+         * @return  true if the message has been archived or it is too old, false otherwise
+         */
+        boolean contains(long sequence) {
+            if (!started || sequence > highestSequence) return false;
+            if (highestSequence - sequence >= DEDUP_WINDOW) return true;
+            return (window[slot(sequence)] & bit(sequence)) != 0;
+        }
+
+        /**
+         * Marks a message as archived, moving the window forward if it is the newest one.
+         *
+         * @param sequence  message sequence number
+         * @return  true if the message had not been archived yet, false otherwise
+         */
+        boolean add(long sequence) {
+            if (contains(sequence)) return false;
+            if (!started || sequence - highestSequence >= DEDUP_WINDOW) {
+                Arrays.fill(window, 0);
+                highestSequence = sequence;
+                started = true;
+            }
+            for (; highestSequence < sequence; highestSequence++)
+                window[slot(highestSequence + 1)] &= ~bit(highestSequence + 1);
+            window[slot(sequence)] |= bit(sequence);
+            return true;
+        }
+
+        /**
+         * Gets the index of the word holding the sequence number bit.
+         *
+         * @param sequence  message sequence number
+         * @return  the word index
+         */
+        private int slot(long sequence) {
+            return (int) ((sequence % DEDUP_WINDOW) / Long.SIZE);
+        }
+
+        /**
+         * Gets the mask of the sequence number bit within its word.
+         *
+         * @param sequence  message sequence number
+         * @return  the bit mask
+         */
+        private long bit(long sequence) {
+            return 1L << (sequence % Long.SIZE);
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package it.azraelsec.Chat;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
 
 /**
@@ -9,6 +12,11 @@ import java.util.Date;
  * <p>
  * It stores the user who send it, the message itself and the timestamp of the
  * moment it has been sent.
+ * <p>
+ * A received message keeps its text as raw UTF-8 bytes until it is read for the first time.
+ * <p>
+ * The sent messages are stamped by the sender's {@code HybridClock}, and the messages are ordered by
+ * their hybrid timestamp, then by the sender's node id and their sending timestamp.
  *
  * @author Federico Gerardi
  * @author https://azraelsec.github.io/
@@ -16,8 +24,12 @@ import java.util.Date;
 public class ChatMessage implements Serializable, Comparable<ChatMessage> {
     private static final long serialVersionUID = 1L;
     private final String sender;
-    private final String message;
+    private String message;
+    private transient byte[] rawMessage;
     private final long time;
+    private final long clock;
+    private final int node;
+    private final long group;
 
     /**
      * It stores the data the message contains and initializes the timestamp.
@@ -28,6 +40,9 @@ public class ChatMessage implements Serializable, Comparable<ChatMessage> {
         this.sender = sender;
         this.message = message;
         time = new Date().getTime();
+        clock = 0;
+        node = 0;
+        group = 0;
     }
 
     /**
@@ -37,9 +52,42 @@ public class ChatMessage implements Serializable, Comparable<ChatMessage> {
      * @param time      the {@code long} message timestamp
      */
     public ChatMessage(String sender, String message, long time) {
+        this(sender, message, time, 0, 0);
+    }
+
+    /**
+     * It stores the data the message contains, along with its hybrid timestamp.
+     * @param sender    the {@code String} sender username
+     * @param message   the {@code String} message text
+     * @param time      the {@code long} message timestamp
+     * @param clock     the {@code long} hybrid timestamp (0 if it has not been stamped)
+     * @param node      the sender's clock node id
+     */
+    ChatMessage(String sender, String message, long time, long clock, int node) {
         this.sender = sender;
         this.message = message;
         this.time = time;
+        this.clock = clock;
+        this.node = node;
+        group = 0;
+    }
+
+    /**
+     * It stores the data the message contains, leaving the text to be decoded on its first read.
+     * @param sender    the {@code String} sender username
+     * @param rawMessage    the UTF-8 encoded message text
+     * @param time      the {@code long} message timestamp
+     * @param clock     the {@code long} hybrid timestamp (0 if it has not been stamped)
+     * @param node      the sender's clock node id
+     * @param group     the group address the message has been received from, in decimal representation
+     */
+    ChatMessage(String sender, byte[] rawMessage, long time, long clock, int node, long group) {
+        this.sender = sender;
+        this.rawMessage = rawMessage;
+        this.time = time;
+        this.clock = clock;
+        this.node = node;
+        this.group = group;
     }
 
     /**
@@ -55,6 +103,7 @@ public class ChatMessage implements Serializable, Comparable<ChatMessage> {
      * @return the message text
      */
     public String getMessage() {
+        if (message == null && rawMessage != null) message = new String(rawMessage, StandardCharsets.UTF_8);
         return message;
     }
 
@@ -66,23 +115,61 @@ public class ChatMessage implements Serializable, Comparable<ChatMessage> {
         return time;
     }
 
+    /**
+     * Get the message hybrid timestamp.
+     * @return the hybrid timestamp (0 if it has not been stamped)
+     */
+    public long getClock() {
+        return clock;
+    }
+
+    /**
+     * Get the node id of the sender's clock.
+     * @return the node id
+     */
+    public int getNode() {
+        return node;
+    }
+
+    /**
+     * Get the group the message has been received from.
+     * @return the group address in decimal representation (0 if it has not been received from a group)
+     */
+    public long getGroup() {
+        return group;
+    }
+
     /**
      * Manage the printable message version.
      * @return  return a printable message version
      */
     @Override
     public String toString() {
-        return "[" + sender +"] - " + message;
+        return "[" + sender +"] - " + getMessage();
     }
 
     /**
-     * Makes two {@code ChatMessage}s (horribly) comparable based on the timestamp value.
+     * Makes two {@code ChatMessage}s comparable based on their hybrid timestamp, then on the sender's
+     * node id and on the sending timestamp.
      *
-     * @param o object to compare the timestamp to
-     * @return  a value based on the difference between their timestamp
+     * @param o object to compare the timestamps to
+     * @return  a negative value, zero or a positive value as this message comes before, together with or after the other one
      */
     @Override
     public int compareTo(ChatMessage o) {
-        return (int) (time - o.getTime());
+        int result = Long.compare(clock, o.getClock());
+        if (result == 0) result = Integer.compare(node, o.getNode());
+        return result != 0 ? result : Long.compare(time, o.getTime());
+    }
+
+    /**
+     * Decodes the text, if it is still raw, before the message is serialized.
+     *
+     * @param output    serialized object stream
+     * @throws IOException  if an I/O error occurs
+     */
+    private void writeObject(ObjectOutputStream output) throws IOException {
+        getMessage();
+        output.defaultWriteObject();
     }
 }
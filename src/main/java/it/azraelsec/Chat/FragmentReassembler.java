@@ -0,0 +1,182 @@
+package it.azraelsec.Chat;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The {@code FragmentReassembler} class rebuilds the message records which have been split by the
+ * {@code MessageSender} into several FRAGMENT datagrams, because they do not fit into a single one.
+ * <p>
+ * A message is identified by the sender session and its sequence number. Its fragments can come in
+ * any order and more than once: the record is returned as soon as the last missing one is received.
+ * The incomplete messages are kept in insertion order, so the ones waiting for longer than the timeout
+ * are found at the beginning of the table, and the oldest one is given up when the table is full.
+ * <p>
+ * It is not thread-safe: every instance is only accessed by the thread which receives the datagrams.
+ *
+ * @author Federico Gerardi
+ * @author https://azraelsec.github.io/
+ */
+class FragmentReassembler {
+    private final long timeout;
+    private final int maxMessages;
+    private final LinkedHashMap<MessageId, PartialMessage> messages;
+    private long incomplete;
+
+    /**
+     * Initializes an empty {@code FragmentReassembler}.
+     *
+     * @param timeout   time an incomplete message is waited for (in milliseconds)
+     * @param maxMessages   maximum number of incomplete messages
+     */
+    FragmentReassembler(long timeout, int maxMessages) {
+        this.timeout = timeout;
+        this.maxMessages = Math.max(1, maxMessages);
+        messages = new LinkedHashMap<>();
+        incomplete = 0;
+    }
+
+    /**
+     * Adds a fragment, whose header has already been read.
+     *
+     * @param session   sender session
+     * @param sequence  message sequence number
+     * @param index     fragment index
+     * @param count     number of fragments of the message
+     * @param payload   received datagram, positioned at the fragment payload
+     * @return  the whole message record if this fragment completed it, null otherwise
+     */
+    byte[] add(int session, long sequence, int index, int count, ByteBuffer payload) {
+        if (count < 2 || count > MessageSender.MAX_FRAGMENTS || index < 0 || index >= count) return null;
+        if (payload.remaining() > MessageSender.FRAGMENT_PAYLOAD_SIZE) return null;
+        MessageId id = new MessageId(session, sequence);
+        PartialMessage message = messages.get(id);
+        if (message == null) {
+            if (messages.size() >= maxMessages) {
+                Iterator<PartialMessage> eldest = messages.values().iterator();
+                eldest.next();
+                eldest.remove();
+                incomplete++;
+            }
+            message = new PartialMessage(count);
+            messages.put(id, message);
+        }
+        if (message.fragments.length != count || message.fragments[index] != null) return null;
+        byte[] fragment = new byte[payload.remaining()];
+        payload.get(fragment);
+        message.fragments[index] = fragment;
+        message.size += fragment.length;
+        if (++message.received < count) return null;
+        messages.remove(id);
+        byte[] record = new byte[message.size];
+        int offset = 0;
+        for (byte[] part : message.fragments) {
+            System.arraycopy(part, 0, record, offset, part.length);
+            offset += part.length;
+        }
+        return record;
+    }
+
+    /**
+     * Gives up the messages which have been waited for longer than the timeout.
+     *
+     * @param now   current timestamp (in milliseconds)
+     */
+    void expire(long now) {
+        Iterator<PartialMessage> iterator = messages.values().iterator();
+        while (iterator.hasNext() && now - iterator.next().creationTime > timeout) {
+            iterator.remove();
+            incomplete++;
+        }
+    }
+
+    /**
+     * Gives up all the incomplete messages.
+     */
+    void clear() {
+        incomplete += messages.size();
+        messages.clear();
+    }
+
+    /**
+     * Gets the number of messages given up, and resets it.
+     *
+     * @return  incomplete messages counter
+     */
+    long takeIncomplete() {
+        long value = incomplete;
+        incomplete = 0;
+        return value;
+    }
+
+    /**
+     * The {@code MessageId} class identifies a message among the ones of every sender.
+     *
+     * @author Federico Gerardi
+     * @author https://azraelsec.github.io/
+     */
+    private static class MessageId {
+        private final int session;
+        private final long sequence;
+
+        /**
+         * Initializes the {@code MessageId}.
+         *
+         * @param session   sender session
+         * @param sequence  message sequence number
+         */
+        MessageId(int session, long sequence) {
+            this.session = session;
+            this.sequence = sequence;
+        }
+
+        /**
+         * Compares two {@code MessageId}s.
+         *
+         * @param obj   object to compare
+         * @return  true if {@code obj} identifies the same message, false otherwise
+         */
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof MessageId)) return false;
+            MessageId other = (MessageId) obj;
+            return session == other.session && sequence == other.sequence;
+        }
+
+        /**
+         * Gets the hash code of the {@code MessageId}.
+         *
+         * @return  the hash code
+         */
+        @Override
+        public int hashCode() {
+            return 31 * session + Long.hashCode(sequence);
+        }
+    }
+
+    /**
+     * The {@code PartialMessage} class holds the fragments of a message received so far.
+     *
+     * @author Federico Gerardi
+     * @author https://azraelsec.github.io/
+     */
+    private static class PartialMessage {
+        private final byte[][] fragments;
+        private final long creationTime;
+        private int received;
+        private int size;
+
+        /**
+         * Initializes an empty {@code PartialMessage}.
+         *
+         * @param count number of fragments of the message
+         */
+        PartialMessage(int count) {
+            fragments = new byte[count][];
+            creationTime = System.currentTimeMillis();
+            received = 0;
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package it.azraelsec.Chat;
+
+import java.security.SecureRandom;
+
+/**
+ * The {@code HybridClock} class is a hybrid logical clock, shared by the {@code MessageSender} and the
+ * {@code MessageReceiver} of a {@code Client}, which stamps the outgoing {@code ChatMessage}s.
+ * <p>
+ * A timestamp packs the physical time (in milliseconds) into its upper bits and a logical counter into
+ * its lower {@code COUNTER_BITS}, so that the timestamps are compared as plain longs. Every stamp is
+ * greater than the previous one and than every timestamp received so far: a message sent after reading
+ * another one is always ordered after it, however unsynchronized the wall clocks are, while the
+ * timestamps stay close to the physical time.
+ * <p>
+ * The received timestamps too far ahead of the local physical time are ignored, so that a single
+ * broken clock cannot drag the others along. Each clock has got a random node id, which breaks the
+ * ties between the messages of different senders.
+ *
+ * @author Federico Gerardi
+ * @author https://azraelsec.github.io/
+ */
+public class HybridClock {
+    private static final int COUNTER_BITS = 16;
+    private static final long MAX_DRIFT = 60000;
+    private final int node;
+    private long last;
+
+    /**
+     * Initializes the {@code HybridClock} with a random node id.
+     */
+    public HybridClock() {
+        node = new SecureRandom().nextInt();
+        last = 0;
+    }
+
+    /**
+     * Gets a new timestamp for an outgoing message.
+     *
+     * @return  the timestamp
+     */
+    public synchronized long now() {
+        last = Math.max(last + 1, physicalTime());
+        return last;
+    }
+
+    /**
+     * Merges the timestamp of a received message into the clock.
+     *
+     * @param timestamp the received timestamp (0 if it has not been stamped)
+     */
+    public synchronized void update(long timestamp) {
+        long physical = physicalTime();
+        if (timestamp <= 0 || timestamp - physical > MAX_DRIFT << COUNTER_BITS) return;
+        last = Math.max(Math.max(last, timestamp) + 1, physical);
+    }
+
+    /**
+     * Gets the node id of the clock.
+     *
+     * @return  the node id
+     */
+    public int getNode() {
+        return node;
+    }
+
+    /**
+     * Gets the current physical time as a timestamp with no logical counter.
+     *
+     * @return  the physical timestamp
+     */
+    private static long physicalTime() {
+        return System.currentTimeMillis() << COUNTER_BITS;
+    }
+}
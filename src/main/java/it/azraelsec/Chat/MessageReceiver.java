@@ -3,7 +3,6 @@ package it.azraelsec.Chat;
 import it.azraelsec.Client.Client;
 
 import java.io.IOException;
-import java.lang.reflect.Array;
 import java.net.*;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
@@ -11,38 +10,116 @@ import java.nio.channels.DatagramChannel;
 import java.nio.channels.MembershipKey;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The {@code MessageReceiver} class represent a {@code ChatMessage} receiver
- * which waits for new messages addressed to him and stores them in a {@code List}.
+ * which waits for new messages addressed to him and stores them in a bounded
+ * {@code MessageRingBuffer} for each joined group, in the order they are released.
  * <p>
  * The {@code Client} will then have the possibility to asyncronously withdraw
- * them all.
+ * them all. If it does not for a while, the exceeding messages are dropped and counted.
  * <p>
  * This {@code Thread} spawn a {@code DatagramChannel} which acts like a
  * UDP Server which waits for new multicast messages sent from other {@code Client}
- * processes around the network.
+ * processes around the network. A single datagram can carry a batch of messages.
+ * <p>
+ * The channel can join any number of groups at the same time: every datagram header carries the group
+ * it has been sent to, so the messages are tagged with their group and kept apart, each group with its
+ * own streams, {@code ReorderBuffer} and queue. The groups are joined and left by the receiver thread
+ * itself, through a queue of tasks, so a single thread can follow many document chats.
+ * <p>
+ * The messages of every sender session go through a {@code SenderStream}, which delivers them once and
+ * in the order they have been sent. When new gaps are found, a NACK listing them is sent back to the
+ * sender, and all the gaps are asked for again every {@code REPAIR_INTERVAL} until the first one is
+ * repaired or has been asked for {@code MAX_NACK_ATTEMPTS} more times: then its missing messages are
+ * counted as lost. The HEARTBEAT datagrams of a known sender reveal the messages missing at the end of
+ * its stream, which are asked for in the same way.
+ * <p>
+ * The messages which have been split into fragments are put back together by a {@code FragmentReassembler}
+ * before going through their {@code SenderStream}: the ones still incomplete after {@code REASSEMBLY_TIMEOUT}
+ * are given up, while a missing fragment shows up as a gap and is asked for like any other message.
+ * <p>
+ * The in-order messages of all the senders of a group are then merged by a {@code ReorderBuffer}, which
+ * holds them for a short delay and releases them in {@code HybridClock} order, so that a reply never shows
+ * up before the message it answers to. Their timestamps are merged into the clock shared with the
+ * {@code MessageSender}.
+ * <p>
+ * The datagrams are received into a direct buffer. The senders' names are cached by every group, as a
+ * group has only a handful of senders, evicting the least recently used one when the cache is full, while
+ * the message texts are copied as raw bytes and decoded only when they
+ * are read.
  *
  * @author Federico Gerardi
  * @author https://azraelsec.github.io/
  */
 public class MessageReceiver extends Thread {
-    private final List<ChatMessage> messageQueue;
-    private MembershipKey activeGroup;
+    private static final int BUFFER_SIZE = 2048;
+    private static final int MAX_CACHED_SENDERS = 32;
+    private static final int REPAIR_INTERVAL = 100;
+    private static final int MAX_NACK_ATTEMPTS = 3;
+    private static final long STREAM_TIMEOUT = 60000;
+    private static final long REASSEMBLY_TIMEOUT = 5000;
+    private static final int MAX_REASSEMBLIES = 16;
+    private static final int REORDER_CAPACITY = 256;
+    private final int capacity;
+    private final boolean dropOldest;
+    private final int receiveWindow;
+    private final int reorderDelay;
+    private final Map<Long, GroupChat> groups;
+    private final Queue<Runnable> pendingTasks;
+    private final FragmentReassembler reassembler;
+    private final HybridClock clock;
+    private final AtomicLong deliveredMessages;
+    private final AtomicLong duplicates;
+    private final AtomicLong lost;
+    private final AtomicLong nacksSent;
+    private final AtomicLong incomplete;
+    private final AtomicLong late;
+    private final AtomicLong dropped;
+    private volatile Selector selector;
     private DatagramChannel channel;
     private NetworkInterface interf;
 
     /**
      * It initializes the internal structure related to the UDP channel and
-     * message queue.
+     * message queues.
+     *
+     * @param capacity  maximum number of messages of a group waiting to be withdrawn
+     * @param dropOldest    whether the oldest message is dropped when a queue is full, instead of the new one
+     * @param receiveWindow maximum number of messages of a sender waiting for a gap to be repaired
+     * @param reorderDelay  time the messages are held to be merged in order (in milliseconds)
+     * @param clock the clock the received timestamps are merged into, shared with the {@code MessageSender}
      */
-    public MessageReceiver() {
-        messageQueue = new ArrayList<>();
-        activeGroup = null;
+    public MessageReceiver(int capacity, boolean dropOldest, int receiveWindow, int reorderDelay, HybridClock clock) {
+        this.capacity = capacity;
+        this.dropOldest = dropOldest;
+        this.receiveWindow = receiveWindow;
+        this.reorderDelay = reorderDelay;
+        groups = new ConcurrentHashMap<>();
+        pendingTasks = new ConcurrentLinkedQueue<>();
+        reassembler = new FragmentReassembler(REASSEMBLY_TIMEOUT, MAX_REASSEMBLIES);
+        this.clock = clock;
+        deliveredMessages = new AtomicLong();
+        duplicates = new AtomicLong();
+        lost = new AtomicLong();
+        nacksSent = new AtomicLong();
+        incomplete = new AtomicLong();
+        late = new AtomicLong();
+        dropped = new AtomicLong();
+        selector = null;
         channel = null;
         interf = null;
     }
@@ -53,44 +130,48 @@ public class MessageReceiver extends Thread {
     @Override
     public void run() {
         try {
-            Selector selector = Selector.open();
             channel = DatagramChannel.open(StandardProtocolFamily.INET);
             interf = NetworkInterface.getByInetAddress(InetAddress.getLocalHost());
             channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, interf);
             channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
             channel.bind(new InetSocketAddress(Client.UDP_PORT));
             channel.configureBlocking(false);
+            selector = Selector.open();
             channel.register(selector, SelectionKey.OP_READ);
-            ByteBuffer buffer = ByteBuffer.allocate(2048);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            ByteBuffer nack = ByteBuffer.allocate(MessageSender.MAX_NACK_SIZE);
+            List<ChatMessage> delivered = new ArrayList<>();
             while (!Thread.currentThread().isInterrupted()) {
-                selector.select();
+                Runnable task;
+                while ((task = pendingTasks.poll()) != null)
+                    task.run();
+                selector.select(nextWakeUp(System.currentTimeMillis()));
                 Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
                 while (iterator.hasNext()) {
                     SelectionKey key = iterator.next();
                     iterator.remove();
                     if (key.isReadable()) {
                         buffer.clear();
-                        InetSocketAddress sa = (InetSocketAddress) channel.receive(buffer);
-                        if (sa != null) {
+                        InetSocketAddress sa;
+                        while ((sa = (InetSocketAddress) channel.receive(buffer)) != null) {
                             buffer.flip();
-                            try {
-                                String username = getString(buffer);
-                                String text = getString(buffer);
-                                long timestamp = buffer.getLong();
-                                ChatMessage message = new ChatMessage(username, text, timestamp);
-                                synchronized (messageQueue) {
-                                    messageQueue.add(message);
-                                }
-                            } catch (BufferUnderflowException ignore) {
-                            }
+                            onDatagram(buffer, sa, delivered, nack);
+                            buffer.clear();
                         }
                     }
                 }
+                checkGaps(delivered, nack);
+                release(delivered);
             }
         } catch (IOException ex) {
             ex.printStackTrace(); //todo: remove
         }
         finally {
+            if (selector != null)
+                try {
+                    selector.close();
+                } catch (IOException ignore) {
+                }
             if(channel != null)
                 try {
                     channel.close();
@@ -100,57 +181,367 @@ public class MessageReceiver extends Thread {
     }
 
     /**
-     * It returns a String representation of the {@code ByteBuffer} content.
+     * It computes how long the receiver can wait for new datagrams: until the next repair check, or
+     * until the first held message of a group has to be released.
+     * @param now   the current timestamp (in milliseconds)
+     * @return      the waiting time (in milliseconds, never 0)
+     */
+    private long nextWakeUp(long now) {
+        long wait = REPAIR_INTERVAL;
+        for (GroupChat group : groups.values()) {
+            long nextRelease = group.reorderBuffer.nextRelease(now);
+            if (nextRelease >= 0) wait = Math.min(wait, nextRelease);
+        }
+        return Math.max(1, wait);
+    }
+
+    /**
+     * It handles a data datagram or a fragment sent to a joined group: the messages are passed through
+     * the sender's {@code SenderStream}, once they are complete, and the ones ready to be delivered are
+     * moved into the group's {@code ReorderBuffer}. A heartbeat only moves the end of the sender's stream
+     * forward. A repair request is sent as soon as a gap is found.
+     * @param buffer    the received datagram
+     * @param source    the sender address
+     * @param delivered the delivered messages temporary list
+     * @param nack      the repair request buffer
+     * @throws IOException  if a I/O error occurs
+     */
+    private void onDatagram(ByteBuffer buffer, InetSocketAddress source, List<ChatMessage> delivered, ByteBuffer nack) throws IOException {
+        if (buffer.remaining() < MessageSender.DATA_HEADER_SIZE) return;
+        byte type = buffer.get();
+        long address = Integer.toUnsignedLong(buffer.getInt());
+        int session = buffer.getInt();
+        long sequence = buffer.getLong();
+        GroupChat group = groups.get(address);
+        if (group == null) return;
+        if (type == MessageSender.HEARTBEAT) {
+            SenderStream known = group.streams.get(session);
+            if (known == null) return;
+            known.advertise(sequence);
+            if (known.hasNewGaps()) sendNack(session, known, nack, false);
+            return;
+        }
+        if (type == MessageSender.FRAGMENT) {
+            if (buffer.remaining() < MessageSender.FRAGMENT_HEADER_SIZE - MessageSender.DATA_HEADER_SIZE) return;
+            SenderStream known = group.streams.get(session);
+            if (known != null && known.hasReceived(sequence)) return;
+            int index = buffer.getInt();
+            int count = buffer.getInt();
+            byte[] record = reassembler.add(session, sequence, index, count, buffer);
+            if (record == null) return;
+            buffer = ByteBuffer.wrap(record);
+        } else if (type != MessageSender.DATA) return;
+        SenderStream stream = group.streams.computeIfAbsent(session, ignore -> new SenderStream(source, receiveWindow));
+        try {
+            while (buffer.hasRemaining()) {
+                String username = getSender(group, buffer);
+                byte[] text = getBytes(buffer, buffer.getInt());
+                long timestamp = buffer.getLong();
+                long messageClock = buffer.getLong();
+                int node = buffer.getInt();
+                stream.accept(sequence++, new ChatMessage(username, text, timestamp, messageClock, node, address), delivered);
+            }
+        } catch (BufferUnderflowException ignore) {
+        }
+        deliver(group, stream, delivered);
+        if (stream.hasNewGaps()) sendNack(session, stream, nack, false);
+    }
+
+    /**
+     * It asks again for the gaps which have not been repaired in time, gives up the ones which have
+     * been asked for too many times and the messages which have not been reassembled in time, and
+     * forgets the idle senders.
+     * @param delivered the delivered messages temporary list
+     * @param nack      the repair request buffer
+     * @throws IOException  if a I/O error occurs
+     */
+    private void checkGaps(List<ChatMessage> delivered, ByteBuffer nack) throws IOException {
+        long now = System.currentTimeMillis();
+        reassembler.expire(now);
+        incomplete.addAndGet(reassembler.takeIncomplete());
+        for (GroupChat group : groups.values()) {
+            Iterator<Map.Entry<Integer, SenderStream>> iterator = group.streams.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Integer, SenderStream> entry = iterator.next();
+                SenderStream stream = entry.getValue();
+                if (stream.isRetryDue(now)) {
+                    if (stream.getNackAttempts() >= MAX_NACK_ATTEMPTS) {
+                        stream.skipGap(delivered);
+                        deliver(group, stream, delivered);
+                    }
+                    if (stream.hasGap()) sendNack(entry.getKey(), stream, nack, true);
+                } else if (!stream.hasGap() && now - stream.getLastActivity() > STREAM_TIMEOUT) iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * It sends a repair request for the gaps of the stream to its sender.
+     * @param session   the sender session
+     * @param stream    the sender stream
+     * @param nack      the repair request buffer
+     * @param retry     whether all the gaps are asked for again, or only the new ones
+     * @throws IOException  if a I/O error occurs
+     */
+    private void sendNack(int session, SenderStream stream, ByteBuffer nack, boolean retry) throws IOException {
+        List<long[]> gaps = new ArrayList<>();
+        stream.collectGaps(retry, MessageSender.MAX_NACK_GAPS, gaps);
+        if (gaps.isEmpty()) return;
+        nack.clear();
+        nack.put(MessageSender.NACK).putInt(session).putInt(gaps.size());
+        for (long[] gap : gaps)
+            nack.putLong(gap[0]).putInt((int) gap[1]);
+        nack.flip();
+        channel.send(nack, stream.getSource());
+        stream.nackSent(System.currentTimeMillis(), REPAIR_INTERVAL, retry);
+        nacksSent.incrementAndGet();
+    }
+
+    /**
+     * It merges the timestamps of the delivered messages into the clock, moves the messages into the
+     * group's {@code ReorderBuffer} and collects the stream counters.
+     * @param group     the group the messages have been sent to
+     * @param stream    the sender stream
+     * @param delivered the delivered messages temporary list (emptied)
+     */
+    private void deliver(GroupChat group, SenderStream stream, List<ChatMessage> delivered) {
+        long now = System.currentTimeMillis();
+        for (ChatMessage message : delivered) {
+            clock.update(message.getClock());
+            group.reorderBuffer.add(message, now);
+        }
+        delivered.clear();
+        duplicates.addAndGet(stream.takeDuplicates());
+        lost.addAndGet(stream.takeLost());
+    }
+
+    /**
+     * It queues the messages released by the {@code ReorderBuffer}s.
+     * @param released  the released messages temporary list
+     */
+    private void release(List<ChatMessage> released) {
+        long now = System.currentTimeMillis();
+        for (GroupChat group : groups.values()) {
+            group.reorderBuffer.release(now, released);
+            enqueue(group, released);
+        }
+    }
+
+    /**
+     * It queues the released messages of a group and collects the ordering counter.
+     * @param group     the group the messages have been sent to
+     * @param released  the released messages temporary list (emptied)
+     */
+    private void enqueue(GroupChat group, List<ChatMessage> released) {
+        for (ChatMessage message : released)
+            group.queue.offer(message);
+        deliveredMessages.addAndGet(released.size());
+        released.clear();
+        late.addAndGet(group.reorderBuffer.takeLate());
+    }
+
+    /**
+     * It joins the group, unless it has already been joined. It runs on the receiver thread.
+     * @param address   the group address in decimal representation
+     */
+    private void onJoin(long address) {
+        if (groups.containsKey(address)) return;
+        try {
+            MembershipKey key = channel.join(CDAManager.decimalToAddress(address), interf);
+            groups.put(address, new GroupChat(key, new MessageRingBuffer(capacity, dropOldest), new ReorderBuffer(reorderDelay, REORDER_CAPACITY)));
+        } catch (IOException ex) {
+            System.err.println("Cannot join the chat group " + address + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * It leaves the group, forgetting its streams, messages and senders' names. It runs on the
+     * receiver thread.
+     * @param address   the group address in decimal representation
+     */
+    private void onLeave(long address) {
+        GroupChat group = groups.remove(address);
+        if (group == null) return;
+        group.key.drop();
+        dropped.addAndGet(group.queue.getDropped());
+    }
+
+    /**
+     * It returns the sender name at the {@code ByteBuffer} position, looking it up in the
+     * group's senders cache first. The cache is kept from the most to the least recently used
+     * name, so a new name takes the place of the last one when the cache is full.
+     * @param group     the group the datagram has been sent to
      * @param buffer    the source ByteBuffer
-     * @return          the string source buffer's content
+     * @return          the sender name
      */
-    private String getString(ByteBuffer buffer) {
+    private String getSender(GroupChat group, ByteBuffer buffer) {
         int size = buffer.getInt();
+        if (size < 0 || size > buffer.remaining()) throw new BufferUnderflowException();
+        int found = 0;
+        while (found < group.cachedSendersNumber && !matches(buffer, group.cachedSenderBytes[found], size))
+            found++;
+        byte[] raw;
+        String sender;
+        if (found < group.cachedSendersNumber) {
+            buffer.position(buffer.position() + size);
+            raw = group.cachedSenderBytes[found];
+            sender = group.cachedSenders[found];
+        } else {
+            raw = getBytes(buffer, size);
+            sender = new String(raw, StandardCharsets.UTF_8);
+            if (group.cachedSendersNumber < MAX_CACHED_SENDERS) group.cachedSendersNumber++;
+            found = group.cachedSendersNumber - 1;
+        }
+        System.arraycopy(group.cachedSenderBytes, 0, group.cachedSenderBytes, 1, found);
+        System.arraycopy(group.cachedSenders, 0, group.cachedSenders, 1, found);
+        group.cachedSenderBytes[0] = raw;
+        group.cachedSenders[0] = sender;
+        return sender;
+    }
+
+    /**
+     * It checks whether the next bytes of the {@code ByteBuffer} are the same as the raw ones,
+     * without moving its position.
+     * @param buffer    the source ByteBuffer
+     * @param raw       the bytes to compare
+     * @param size      the number of the next bytes
+     * @return          true if they are equal, false otherwise
+     */
+    private boolean matches(ByteBuffer buffer, byte[] raw, int size) {
+        if (raw.length != size) return false;
+        int position = buffer.position();
+        for (int i = 0; i < size; i++)
+            if (buffer.get(position + i) != raw[i]) return false;
+        return true;
+    }
+
+    /**
+     * It copies the next bytes of the {@code ByteBuffer}.
+     * @param buffer    the source ByteBuffer
+     * @param size      the number of bytes
+     * @return          the copied bytes
+     */
+    private byte[] getBytes(ByteBuffer buffer, int size) {
+        if (size < 0 || size > buffer.remaining()) throw new BufferUnderflowException();
         byte[] res = new byte[size];
         buffer.get(res, 0, size);
-        return new String(res);
+        return res;
+    }
+
+    /**
+     * It gets all the messages existing in the queue of a group, in the order they have been released.
+     * @param group the group address in decimal representation
+     * @return  the available {@code ChatMessage} array (empty if the group has not been joined)
+     */
+    public ChatMessage[] getMessages(long group) {
+        GroupChat chat = groups.get(group);
+        return chat == null ? new ChatMessage[0] : chat.queue.drain().toArray(new ChatMessage[0]);
     }
 
     /**
-     * It gets all the messages existing in the queue.
+     * It gets all the messages existing in the queues of every group, group by group. Every message
+     * is tagged with its group.
      * @return  the available {@code ChatMessage} array
      */
     public ChatMessage[] getMessages() {
-        ChatMessage[] messages = null;
-        synchronized (messageQueue) {
-            messages = messageQueue.toArray(new ChatMessage[0]);
-            messageQueue.clear();
-        }
-        Arrays.sort(messages);
-        return messages;
+        List<ChatMessage> messages = new ArrayList<>();
+        for (GroupChat chat : groups.values())
+            messages.addAll(chat.queue.drain());
+        return messages.toArray(new ChatMessage[0]);
+    }
+
+    /**
+     * Gets the number of messages dropped because a queue was full.
+     * @return  dropped messages counter
+     */
+    public long getDroppedMessages() {
+        long total = dropped.get();
+        for (GroupChat chat : groups.values())
+            total += chat.queue.getDropped();
+        return total;
+    }
+
+    /**
+     * Gets a printable summary of the receiving counters.
+     * @return  the counters summary
+     */
+    public String stats() {
+        return String.format("chat: %d groups, %d messages delivered, %d duplicates, %d lost, %d repair requests, %d incomplete, %d late, %d dropped",
+                groups.size(), deliveredMessages.get(), duplicates.get(), lost.get(), nacksSent.get(), incomplete.get(), late.get(), getDroppedMessages());
     }
 
     /**
      * It makes the {@code MessageReceiver} to listen for messages coming from
-     * the group represented by the IPv4 address in decimal format.
-     * @param group                 the group address in decimal representation
-     * @throws IOException          if a I/O error occurs
-     * @throws UnknownHostException if group is not a valid address
-     */
-    public void setNewGroup(long group) throws IOException, UnknownHostException {
-        if (channel != null) {
-            if (group > 0) {
-                byte[] rawAddress = CDAManager.decimalToAddress(group).getAddress();
-                if (activeGroup != null && activeGroup.isValid()) activeGroup.drop();
-                activeGroup = channel.join(InetAddress.getByAddress(rawAddress), interf);
-            }
-            else {
-                activeGroup.drop();
-                activeGroup = null;
-            }
-        }
+     * the group represented by the IPv4 address in decimal format too. The group
+     * is joined by the receiver thread as soon as it wakes up.
+     * <p>
+     * The operating system caps the number of groups a channel can join (on Linux,
+     * {@code net.ipv4.igmp_max_memberships}, 20 by default): a failed join is reported
+     * on the standard error.
+     * @param group the group address in decimal representation
+     */
+    public void joinGroup(long group) {
+        submit(() -> onJoin(group));
+    }
+
+    /**
+     * It makes the {@code MessageReceiver} to stop listening for messages coming
+     * from the group, discarding the ones which have not been withdrawn yet.
+     * @param group the group address in decimal representation
+     */
+    public void leaveGroup(long group) {
+        submit(() -> onLeave(group));
+    }
+
+    /**
+     * Get the joined groups.
+     * @return  the addresses, in decimal representation, of the joined groups
+     */
+    public Set<Long> getGroups() {
+        return Collections.unmodifiableSet(new HashSet<>(groups.keySet()));
     }
 
     /**
-     * Get the active group.
-     * @return the {@code InetAddress} active group address
+     * Queues a task for the receiver thread and wakes it up.
+     * @param task  task to run
      */
-    public InetAddress getActiveGroup() {
-        return activeGroup.group();
+    private void submit(Runnable task) {
+        pendingTasks.add(task);
+        Selector current = selector;
+        if (current != null) current.wakeup();
+    }
+
+    /**
+     * The {@code GroupChat} class holds the state of a joined group. Its streams, senders cache
+     * and {@code ReorderBuffer} are only accessed by the receiver thread, while its queue is
+     * withdrawn by the reader.
+     *
+     * @author Federico Gerardi
+     * @author https://azraelsec.github.io/
+     */
+    private static class GroupChat {
+        private final MembershipKey key;
+        private final MessageRingBuffer queue;
+        private final ReorderBuffer reorderBuffer;
+        private final Map<Integer, SenderStream> streams;
+        private final byte[][] cachedSenderBytes;
+        private final String[] cachedSenders;
+        private int cachedSendersNumber;
+
+        /**
+         * Initializes the {@code GroupChat}.
+         * @param key   the group membership
+         * @param queue the queue of the released messages
+         * @param reorderBuffer the buffer merging the senders' messages
+         */
+        GroupChat(MembershipKey key, MessageRingBuffer queue, ReorderBuffer reorderBuffer) {
+            this.key = key;
+            this.queue = queue;
+            this.reorderBuffer = reorderBuffer;
+            streams = new HashMap<>();
+            cachedSenderBytes = new byte[MAX_CACHED_SENDERS][];
+            cachedSenders = new String[MAX_CACHED_SENDERS];
+            cachedSendersNumber = 0;
+        }
     }
 }
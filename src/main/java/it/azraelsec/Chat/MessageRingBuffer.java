@@ -0,0 +1,102 @@
+package it.azraelsec.Chat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The {@code MessageRingBuffer} class is a fixed-capacity, lock-free ring buffer which passes the
+ * {@code ChatMessage}s from a single producer (the {@code MessageReceiver} thread) to a single
+ * consumer (the {@code Client} command line). The messages come out in the same order they went in.
+ * <p>
+ * When the buffer is full, the producer either drops the oldest message, advancing the consumer
+ * index on its behalf, or discards the new one. Both cases are counted.
+ * <p>
+ * The consumer only keeps a message if it manages to advance the consumer index from the slot it
+ * has read, so a slot overwritten by the producer in the meantime is never returned.
+ *
+ * @author Federico Gerardi
+ * @author https://azraelsec.github.io/
+ */
+class MessageRingBuffer {
+    private final AtomicReferenceArray<ChatMessage> slots;
+    private final int mask;
+    private final boolean dropOldest;
+    private final AtomicLong head;
+    private final AtomicLong tail;
+    private final AtomicLong dropped;
+
+    /**
+     * Initializes an empty {@code MessageRingBuffer}.
+     *
+     * @param capacity  minimum number of messages stored (rounded up to a power of two)
+     * @param dropOldest    whether the oldest message is dropped when the buffer is full, instead of the new one
+     */
+    MessageRingBuffer(int capacity, boolean dropOldest) {
+        int size = Integer.highestOneBit(Math.max(2, Math.min(capacity, 1 << 30)) * 2 - 1);
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+        this.dropOldest = dropOldest;
+        head = new AtomicLong();
+        tail = new AtomicLong();
+        dropped = new AtomicLong();
+    }
+
+    /**
+     * Adds a message. It must be called by the producer only.
+     *
+     * @param message   the message to add
+     * @return  true if the message has been added, false if it has been dropped
+     */
+    boolean offer(ChatMessage message) {
+        long position = tail.get();
+        long oldest;
+        while (position - (oldest = head.get()) > mask) {
+            if (!dropOldest) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            if (head.compareAndSet(oldest, oldest + 1)) dropped.incrementAndGet();
+        }
+        slots.set((int) (position & mask), message);
+        tail.lazySet(position + 1);
+        return true;
+    }
+
+    /**
+     * Removes and gets the oldest message. It must be called by the consumer only.
+     *
+     * @return  the oldest message or null if the buffer is empty
+     */
+    ChatMessage poll() {
+        while (true) {
+            long position = head.get();
+            if (position >= tail.get()) return null;
+            ChatMessage message = slots.get((int) (position & mask));
+            if (head.compareAndSet(position, position + 1)) return message;
+        }
+    }
+
+    /**
+     * Removes and gets all the messages. It must be called by the consumer only.
+     *
+     * @return  the messages, from the oldest one
+     */
+    List<ChatMessage> drain() {
+        List<ChatMessage> messages = new ArrayList<>();
+        ChatMessage message;
+        while ((message = poll()) != null)
+            messages.add(message);
+        return messages;
+    }
+
+    /**
+     * Gets the number of dropped messages.
+     *
+     * @return  dropped messages counter
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+}
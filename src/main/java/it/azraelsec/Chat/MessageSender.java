@@ -3,7 +3,17 @@ package it.azraelsec.Chat;
 import java.io.IOException;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.channels.DatagramChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The {@code MessageSender} class's purposes is to represent an agent which
@@ -12,36 +22,155 @@ import java.nio.channels.DatagramChannel;
  * Cause its nature, it's not required to store the multicast group to which
  * the messages are sent, so this information is passed every time the {@code sendMessage}
  * method is called.
+ * <p>
+ * A datagram starts with a header, made up by its type, the group address it is sent to, the sender
+ * session and the sequence number of its first message, followed by one or more message records: the sender and the text, each one
+ * preceded by its length, the sending timestamp and the {@code HybridClock} timestamp and node id.
+ * With a batching window greater than 0 the messages sent within the window to the same group are
+ * coalesced into a single datagram, which is sent as soon as the window expires or it would exceed
+ * {@code MAX_DATAGRAM_SIZE}; otherwise every message is sent on its own.
+ * <p>
+ * A message whose record does not fit into a datagram on its own is split into up to {@code MAX_FRAGMENTS}
+ * FRAGMENT datagrams, each one carrying the same header of a data datagram, followed by its index and the
+ * number of fragments, so that the receivers can put it back together.
+ * <p>
+ * Every message of a session gets the next sequence number and is kept into a small retransmit buffer.
+ * The {@code MessageReceiver}s which detect some gaps send a NACK datagram back to the sender, listing
+ * the first sequence number and the length of each one, and the sender sends the missing messages again
+ * to the group, as long as they are still buffered. Since a receiver only finds a gap once a later message
+ * comes, the sender multicasts a HEARTBEAT datagram, made up by the header alone and carrying the sequence
+ * number of the last message sent, {@code HEARTBEAT_INTERVAL} after the last message and then up to
+ * {@code MAX_HEARTBEATS} times, each time twice as late, so that the messages lost at the end of a burst
+ * are asked for too. A new session starts
+ * whenever the messages are sent to a different group, so that the receivers of a group see no gaps
+ * because of the messages sent elsewhere.
+ * <p>
+ * The strings are encoded straight into a direct buffer, without intermediate byte arrays.
  *
  * @author Federico Gerardi
  * @author https://azraelsec.github.io/
  */
 public class MessageSender {
+    /*
+    MAX_DATAGRAM_SIZE keeps a batch within a common Ethernet MTU (minus IP/UDP headers)
+     */
+    public static final int MAX_DATAGRAM_SIZE = 1472;
+    static final byte DATA = 0;
+    static final byte NACK = 1;
+    static final byte FRAGMENT = 2;
+    static final byte HEARTBEAT = 3;
+    static final int DATA_HEADER_SIZE = Byte.BYTES + Integer.BYTES + Integer.BYTES + Long.BYTES;
+    static final int RECORD_TRAILER_SIZE = Long.BYTES + Long.BYTES + Integer.BYTES;
+    static final int FRAGMENT_HEADER_SIZE = DATA_HEADER_SIZE + 2 * Integer.BYTES;
+    static final int FRAGMENT_PAYLOAD_SIZE = MAX_DATAGRAM_SIZE - FRAGMENT_HEADER_SIZE;
+    static final int MAX_FRAGMENTS = 64;
+    static final int MAX_RECORD_SIZE = MAX_FRAGMENTS * FRAGMENT_PAYLOAD_SIZE;
+    static final int MAX_NACK_GAPS = 64;
+    static final int NACK_HEADER_SIZE = Byte.BYTES + Integer.BYTES + Integer.BYTES;
+    static final int NACK_GAP_SIZE = Long.BYTES + Integer.BYTES;
+    static final int MAX_NACK_SIZE = NACK_HEADER_SIZE + MAX_NACK_GAPS * NACK_GAP_SIZE;
+    private static final long HEARTBEAT_INTERVAL = 100;
+    private static final int MAX_HEARTBEATS = 3;
     private final DatagramChannel channel;
     private final ByteBuffer buffer;
+    private final ByteBuffer repairBuffer;
+    private final ByteBuffer heartbeat;
+    private final ByteBuffer fragmentedRecord;
+    private final CharsetEncoder encoder;
+    private final int batchWindow;
+    private final ScheduledExecutorService scheduler;
+    private final SecureRandom random;
+    private final HybridClock clock;
+    private int session;
+    private InetSocketAddress sessionGroup;
+    private int sessionGroupId;
+    private long sessionStart;
+    private final ChatMessage[] retransmitMessages;
+    private final AtomicLong messagesSent;
+    private final AtomicLong datagramsSent;
+    private final AtomicLong nacksReceived;
+    private final AtomicLong retransmitted;
+    private final AtomicLong heartbeatsSent;
+    private final long creationTime;
+    private InetSocketAddress pendingGroup;
+    private long nextSequence;
+    private long lastMessageTime;
+    private int heartbeatsLeft;
+    private boolean heartbeatScheduled;
 
     /**
      * It stores the reference to the {@code DatagramChannel} object and allocate the internal
-     * buffer used as destination for the receiving data.
+     * buffers used to build the outgoing datagrams.
      *
      * @param channel   UDP data channel
+     * @param batchWindow   batching window (in milliseconds), 0 to disable batching
+     * @param retransmitBufferSize  number of sent messages kept to be retransmitted
+     * @param clock the clock the messages are stamped by
      */
-    private MessageSender(DatagramChannel channel) {
+    private MessageSender(DatagramChannel channel, int batchWindow, int retransmitBufferSize, HybridClock clock) {
         this.channel = channel;
-        buffer = ByteBuffer.allocate(2048);
+        this.batchWindow = batchWindow;
+        buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+        repairBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+        heartbeat = ByteBuffer.allocateDirect(DATA_HEADER_SIZE);
+        fragmentedRecord = ByteBuffer.allocate(MAX_RECORD_SIZE);
+        encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "MessageSenderScheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        random = new SecureRandom();
+        this.clock = clock;
+        session = random.nextInt();
+        sessionGroup = null;
+        sessionGroupId = 0;
+        sessionStart = 0;
+        retransmitMessages = new ChatMessage[retransmitBufferSize];
+        messagesSent = new AtomicLong();
+        datagramsSent = new AtomicLong();
+        nacksReceived = new AtomicLong();
+        retransmitted = new AtomicLong();
+        heartbeatsSent = new AtomicLong();
+        creationTime = System.currentTimeMillis();
+        pendingGroup = null;
+        nextSequence = 0;
+        lastMessageTime = 0;
+        heartbeatsLeft = 0;
+        heartbeatScheduled = false;
     }
 
     /**
-     * It allocate a new {@code MessageSender} object, initializes the UDP channel and sets multicast interface.
+     * It allocate a new {@code MessageSender} object which sends every message on its own.
      *
      * @return  a new {@code MessageSender} instance or null in case of error
      */
     public static MessageSender create() {
+        return create(0, 1024, new HybridClock());
+    }
+
+    /**
+     * It allocate a new {@code MessageSender} object, initializes the UDP channel and sets multicast interface.
+     * It also starts the thread which serves the repair requests.
+     *
+     * @param batchWindow   batching window (in milliseconds), 0 to disable batching
+     * @param retransmitBufferSize  number of sent messages kept to be retransmitted
+     * @param clock the clock the messages are stamped by, shared with the {@code MessageReceiver}
+     * @return  a new {@code MessageSender} instance or null in case of error
+     */
+    public static MessageSender create(int batchWindow, int retransmitBufferSize, HybridClock clock) {
         try {
             DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
             NetworkInterface interf = NetworkInterface.getByInetAddress(InetAddress.getLocalHost());
             channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, interf);
-            return new MessageSender(channel);
+            channel.bind(null);
+            MessageSender sender = new MessageSender(channel, Math.max(0, batchWindow), Math.max(1, retransmitBufferSize), clock);
+            Thread repairThread = new Thread(sender::serveRepairs, "MessageSenderRepair");
+            repairThread.setDaemon(true);
+            repairThread.start();
+            return sender;
         } catch (IOException ex) {
             return null;
         }
@@ -51,22 +180,295 @@ public class MessageSender {
      * It formats the data into the buffer that will be streamed in a way that the other {@code MessageReceiver}
      * can interpret.
      * <p>
- *     Every object in the buffer is stored preceded by its length and it is stored in a byte raw format.
+     * Every object in the buffer is stored preceded by its length (in bytes) and it is stored in a byte raw format.
+     * The message is stamped by the {@code HybridClock} first.
+     * In batching mode the message is only queued: the pending batch is sent first if it is addressed to
+     * another group or there is no room left for the message. A message which does not fit into a datagram
+     * on its own is sent straight away, split into fragments. The heartbeats start over after every message.
      *
      * @param message   the message text content
      * @param group     the multicast group address
+     * @throws IOException  if a I/O error occurs or the message does not fit into {@code MAX_FRAGMENTS} fragments
+     */
+    public synchronized void sendMessage(ChatMessage message, InetSocketAddress group) throws IOException {
+        if (pendingGroup != null && !pendingGroup.equals(group)) flush();
+        message = new ChatMessage(message.getSender(), message.getMessage(), message.getTime(), clock.now(), clock.getNode());
+        if (!group.equals(sessionGroup)) {
+            session = random.nextInt();
+            sessionGroup = group;
+            sessionGroupId = (int) CDAManager.addressToDecimal(group.getAddress());
+            sessionStart = nextSequence;
+        }
+        if (pendingGroup == null) putHeader(buffer, nextSequence);
+        boolean fits = putRecord(buffer, message);
+        if (!fits && pendingGroup != null) {
+            flush();
+            putHeader(buffer, nextSequence);
+            fits = putRecord(buffer, message);
+        }
+        if (!fits) {
+            buffer.clear();
+            sendFragments(buffer, message, nextSequence, group);
+        }
+        retransmitMessages[(int) (nextSequence++ % retransmitMessages.length)] = message;
+        messagesSent.incrementAndGet();
+        lastMessageTime = System.currentTimeMillis();
+        heartbeatsLeft = MAX_HEARTBEATS;
+        scheduleHeartbeat(HEARTBEAT_INTERVAL);
+        if (!fits) return;
+        if (batchWindow == 0) {
+            pendingGroup = group;
+            flush();
+        } else if (pendingGroup == null) {
+            pendingGroup = group;
+            scheduler.schedule(this::flushPending, batchWindow, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the header of a data datagram into the buffer.
+     *
+     * @param target    the datagram buffer
+     * @param sequence  sequence number of the first message
+     */
+    private void putHeader(ByteBuffer target, long sequence) {
+        putHeader(target, DATA, sequence);
+    }
+
+    /**
+     * Writes the common header of a datagram into the buffer.
+     *
+     * @param target    the datagram buffer
+     * @param type      the datagram type
+     * @param sequence  sequence number of the first message
+     */
+    private void putHeader(ByteBuffer target, byte type, long sequence) {
+        target.put(type);
+        target.putInt(sessionGroupId);
+        target.putInt(session);
+        target.putLong(sequence);
+    }
+
+    /**
+     * Appends the message record to the buffer, unless there is no room left for it.
+     *
+     * @param target    the datagram buffer
+     * @param message   the message to append
+     * @return  true if the record has been appended, false if the buffer has been left untouched
+     */
+    private boolean putRecord(ByteBuffer target, ChatMessage message) {
+        int start = target.position();
+        if (putString(target, message.getSender()) && putString(target, message.getMessage()) && target.remaining() >= RECORD_TRAILER_SIZE) {
+            target.putLong(message.getTime()).putLong(message.getClock()).putInt(message.getNode());
+            return true;
+        }
+        target.position(start);
+        return false;
+    }
+
+    /**
+     * Appends the UTF-8 encoded string to the buffer, preceded by its length in bytes.
+     *
+     * @param target    the datagram buffer
+     * @param string    the string to append
+     * @return  true if the string has been appended, false if there is no room left for it
+     */
+    private boolean putString(ByteBuffer target, String string) {
+        if (target.remaining() < Integer.BYTES) return false;
+        int lengthPosition = target.position();
+        target.position(lengthPosition + Integer.BYTES);
+        encoder.reset();
+        if (encoder.encode(CharBuffer.wrap(string), target, true).isOverflow() || encoder.flush(target).isOverflow())
+            return false;
+        target.putInt(lengthPosition, target.position() - lengthPosition - Integer.BYTES);
+        return true;
+    }
+
+    /**
+     * Splits the message record into fragments and sends them, one datagram each.
+     *
+     * @param target    the datagram buffer (empty)
+     * @param message   the message to send
+     * @param sequence  the message sequence number
+     * @param group     the multicast group address
+     * @throws IOException  if a I/O error occurs or the message does not fit into {@code MAX_FRAGMENTS} fragments
+     */
+    private void sendFragments(ByteBuffer target, ChatMessage message, long sequence, InetSocketAddress group) throws IOException {
+        fragmentedRecord.clear();
+        if (!putRecord(fragmentedRecord, message)) throw new IOException("Message too long");
+        fragmentedRecord.flip();
+        int count = (fragmentedRecord.remaining() + FRAGMENT_PAYLOAD_SIZE - 1) / FRAGMENT_PAYLOAD_SIZE;
+        try {
+            for (int index = 0; index < count; index++) {
+                target.clear();
+                putHeader(target, FRAGMENT, sequence);
+                target.putInt(index).putInt(count);
+                ByteBuffer payload = fragmentedRecord.slice();
+                payload.limit(Math.min(FRAGMENT_PAYLOAD_SIZE, payload.remaining()));
+                target.put(payload);
+                fragmentedRecord.position(fragmentedRecord.position() + payload.limit());
+                target.flip();
+                channel.send(target, group);
+                datagramsSent.incrementAndGet();
+            }
+        } finally {
+            target.clear();
+        }
+    }
+
+    /**
+     * Sends the pending batch, if any.
+     *
      * @throws IOException  if a I/O error occurs
      */
-    public void sendMessage(ChatMessage message, InetSocketAddress group) throws IOException {
-        buffer.clear();
-        buffer.putInt(message.getSender().length());
-        buffer.put(message.getSender().getBytes());
-        buffer.putInt(message.getMessage().length());
-        buffer.put(message.getMessage().getBytes());
-        buffer.putLong(message.getTime());
+    public synchronized void flush() throws IOException {
+        if (pendingGroup == null) return;
+        InetSocketAddress group = pendingGroup;
+        pendingGroup = null;
         buffer.flip();
-        while (buffer.hasRemaining())
+        try {
             channel.send(buffer, group);
+            datagramsSent.incrementAndGet();
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Sends the pending batch when the batching window expires. The errors are ignored, as
+     * the lost messages can be repaired anyway.
+     */
+    private void flushPending() {
+        try {
+            flush();
+        } catch (IOException ignore) {
+        }
+    }
+
+    /**
+     * Schedules the next heartbeat, unless one is already scheduled.
+     *
+     * @param delay time to wait (in milliseconds)
+     */
+    private void scheduleHeartbeat(long delay) {
+        if (heartbeatScheduled) return;
+        try {
+            scheduler.schedule(this::sendHeartbeat, delay, TimeUnit.MILLISECONDS);
+            heartbeatScheduled = true;
+        } catch (RejectedExecutionException ignore) {
+        }
+    }
+
+    /**
+     * Multicasts a heartbeat for the current session, once no message has been sent for
+     * {@code HEARTBEAT_INTERVAL} and the pending batch, if any, has been sent. The errors are ignored,
+     * as the next heartbeat is sent anyway.
+     */
+    private synchronized void sendHeartbeat() {
+        heartbeatScheduled = false;
+        if (heartbeatsLeft == 0 || sessionGroup == null) return;
+        long idle = System.currentTimeMillis() - lastMessageTime;
+        if (idle < HEARTBEAT_INTERVAL || pendingGroup != null) {
+            scheduleHeartbeat(Math.max(1, HEARTBEAT_INTERVAL - idle));
+            return;
+        }
+        heartbeat.clear();
+        putHeader(heartbeat, HEARTBEAT, nextSequence - 1);
+        heartbeat.flip();
+        try {
+            channel.send(heartbeat, sessionGroup);
+            heartbeatsSent.incrementAndGet();
+        } catch (IOException ignore) {
+        }
+        if (--heartbeatsLeft > 0) scheduleHeartbeat(HEARTBEAT_INTERVAL << (MAX_HEARTBEATS - heartbeatsLeft));
+    }
+
+    /**
+     * Waits for the repair requests until the channel is closed.
+     */
+    private void serveRepairs() {
+        ByteBuffer request = ByteBuffer.allocate(MAX_NACK_SIZE);
+        try {
+            while (true) {
+                request.clear();
+                channel.receive(request);
+                request.flip();
+                if (request.remaining() < NACK_HEADER_SIZE || request.get() != NACK) continue;
+                int requestedSession = request.getInt();
+                int gaps = request.getInt();
+                if (gaps < 0 || request.remaining() < gaps * NACK_GAP_SIZE) continue;
+                nacksReceived.incrementAndGet();
+                for (int i = 0; i < gaps; i++)
+                    retransmit(requestedSession, request.getLong(), request.getInt());
+            }
+        } catch (IOException ignore) {
+        }
+    }
+
+    /**
+     * Sends again the requested messages of the current session which are still buffered, batching
+     * them into as few datagrams as possible.
+     *
+     * @param requestedSession    session the messages belong to
+     * @param from  first requested sequence number
+     * @param count number of requested messages
+     * @throws IOException  if a I/O error occurs
+     */
+    private synchronized void retransmit(int requestedSession, long from, int count) throws IOException {
+        if (requestedSession != session || sessionGroup == null) return;
+        long first = Math.max(from, Math.max(sessionStart, nextSequence - retransmitMessages.length));
+        long last = Math.min(from + Math.max(0, count), nextSequence);
+        for (long sequence = first; sequence < last; sequence++) {
+            ChatMessage message = retransmitMessages[(int) (sequence % retransmitMessages.length)];
+            if (repairBuffer.position() > 0 && !putRecord(repairBuffer, message)) sendRepair(sessionGroup);
+            if (repairBuffer.position() == 0) {
+                putHeader(repairBuffer, sequence);
+                if (!putRecord(repairBuffer, message)) sendFragments(repairBuffer, message, sequence, sessionGroup);
+            }
+            retransmitted.incrementAndGet();
+        }
+        if (repairBuffer.position() > 0) sendRepair(sessionGroup);
+    }
+
+    /**
+     * Sends the repair datagram.
+     *
+     * @param group the multicast group address
+     * @throws IOException  if a I/O error occurs
+     */
+    private void sendRepair(InetSocketAddress group) throws IOException {
+        repairBuffer.flip();
+        try {
+            channel.send(repairBuffer, group);
+            datagramsSent.incrementAndGet();
+        } finally {
+            repairBuffer.clear();
+        }
+    }
 
+    /**
+     * Sends the pending batch and releases the UDP channel.
+     */
+    public void close() {
+        flushPending();
+        scheduler.shutdown();
+        try {
+            channel.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    /**
+     * Gets a printable summary of the sending counters.
+     *
+     * @return  the counters summary
+     */
+    public String stats() {
+        long messages = messagesSent.get();
+        long datagrams = datagramsSent.get();
+        double seconds = Math.max(1, System.currentTimeMillis() - creationTime) / 1000.0;
+        return String.format("chat: %d messages in %d datagrams (%.2f datagrams per message), %.2f messages/s, %d repair requests, %d retransmitted, %d heartbeats",
+                messages, datagrams, messages == 0 ? 0.0 : (double) datagrams / messages, messages / seconds,
+                nacksReceived.get(), retransmitted.get(), heartbeatsSent.get());
     }
 }
@@ -0,0 +1,127 @@
+package it.azraelsec.Chat;
+
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The {@code ReorderBuffer} class merges the {@code ChatMessage}s of all the senders of a group in
+ * their hybrid logical clock order, holding each one for a short delay so that the messages ordered
+ * before it have got the time to arrive.
+ * <p>
+ * The messages come out in order as long as they are not late by more than the delay, or the buffer is
+ * not full: a message ordered before an already released one is released anyway, and counted as late.
+ * <p>
+ * It is only accessed by the {@code MessageReceiver} thread.
+ *
+ * @author Federico Gerardi
+ * @author https://azraelsec.github.io/
+ */
+class ReorderBuffer {
+    private final long delay;
+    private final int capacity;
+    private final PriorityQueue<HeldMessage> held;
+    private ChatMessage lastReleased;
+    private long late;
+
+    /**
+     * Initializes an empty {@code ReorderBuffer}.
+     *
+     * @param delay time every message is held for (in milliseconds), 0 to release them straight away
+     * @param capacity  maximum number of held messages
+     */
+    ReorderBuffer(long delay, int capacity) {
+        this.delay = Math.max(0, delay);
+        this.capacity = Math.max(1, capacity);
+        held = new PriorityQueue<>((a, b) -> a.message.compareTo(b.message));
+        lastReleased = null;
+        late = 0;
+    }
+
+    /**
+     * Adds a received message.
+     *
+     * @param message   the received message
+     * @param now   current timestamp (in milliseconds)
+     */
+    void add(ChatMessage message, long now) {
+        held.add(new HeldMessage(message, now));
+    }
+
+    /**
+     * Releases, in order, the messages which have been held for the delay or do not fit into the buffer.
+     *
+     * @param now   current timestamp (in milliseconds)
+     * @param released  list the released messages are added to
+     */
+    void release(long now, List<ChatMessage> released) {
+        HeldMessage first;
+        while ((first = held.peek()) != null && (now - first.arrivalTime >= delay || held.size() > capacity))
+            released.add(take());
+    }
+
+    /**
+     * Releases all the held messages, in order.
+     *
+     * @param released  list the released messages are added to
+     */
+    void flush(List<ChatMessage> released) {
+        while (!held.isEmpty())
+            released.add(take());
+    }
+
+    /**
+     * Removes the first held message, checking whether it is late.
+     *
+     * @return  the first message
+     */
+    private ChatMessage take() {
+        ChatMessage message = held.poll().message;
+        if (lastReleased != null && message.compareTo(lastReleased) < 0) late++;
+        else lastReleased = message;
+        return message;
+    }
+
+    /**
+     * Gets the time left before the first held message is released.
+     *
+     * @param now   current timestamp (in milliseconds)
+     * @return  the time left (in milliseconds) or (-1) if the buffer is empty
+     */
+    long nextRelease(long now) {
+        HeldMessage first = held.peek();
+        return first == null ? -1 : Math.max(0, first.arrivalTime + delay - now);
+    }
+
+    /**
+     * Gets the number of messages released out of order, and resets it.
+     *
+     * @return  late messages counter
+     */
+    long takeLate() {
+        long value = late;
+        late = 0;
+        return value;
+    }
+
+    /**
+     * The {@code HeldMessage} class holds a message and the moment it has been received.
+     *
+     * @author Federico Gerardi
+     * @author https://azraelsec.github.io/
+     */
+    private static class HeldMessage {
+        private final ChatMessage message;
+        private final long arrivalTime;
+
+        /**
+         * Initializes the {@code HeldMessage}.
+         *
+         * @param message   the held message
+         * @param arrivalTime   the receiving timestamp (in milliseconds)
+         */
+        HeldMessage(ChatMessage message, long arrivalTime) {
+            this.message = message;
+            this.arrivalTime = arrivalTime;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package it.azraelsec.Chat;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The {@code SenderStream} class tracks the sequence numbers received from a single {@code MessageSender}
+ * session, so that its messages are delivered once and in the order they have been sent.
+ * <p>
+ * The messages received ahead of a gap wait in a window of limited size, while the receiver asks the
+ * sender for the missing ones: every new gap is asked for as soon as it is found, and all the gaps are
+ * asked for again when the repair does not come in time. A first gap which is not repaired after a few
+ * attempts, or which would not fit into the window, is given up: its messages are counted as lost and
+ * the waiting ones are delivered.
+ * <p>
+ * The sender heartbeats advertise the last message it has sent, so that the messages missing at the end
+ * of the stream, which no later message reveals, are asked for and given up like any other gap.
+ * <p>
+ * It is only accessed by the {@code MessageReceiver} thread.
+ *
+ * @author Federico Gerardi
+ * @author https://azraelsec.github.io/
+ */
+class SenderStream {
+    private final InetSocketAddress source;
+    private final int window;
+    private final TreeMap<Long, ChatMessage> pending;
+    private long nextSequence;
+    private long highestSequence;
+    private long requestedSequence;
+    private boolean started;
+    private int nackAttempts;
+    private long nextNackTime;
+    private long lastActivity;
+    private long duplicates;
+    private long lost;
+
+    /**
+     * Initializes the {@code SenderStream}.
+     *
+     * @param source    sender address, where the repair requests are sent to
+     * @param window    maximum number of messages waiting for a gap to be repaired
+     */
+    SenderStream(InetSocketAddress source, int window) {
+        this.source = source;
+        this.window = Math.max(1, window);
+        pending = new TreeMap<>();
+        started = false;
+        nackAttempts = 0;
+        nextNackTime = 0;
+        lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * Accepts a received message. The stream starts from the first message it receives.
+     *
+     * @param sequence  message sequence number
+     * @param message   received message
+     * @param delivered list the messages ready to be delivered are added to, in order
+     */
+    void accept(long sequence, ChatMessage message, List<ChatMessage> delivered) {
+        lastActivity = System.currentTimeMillis();
+        if (!started) {
+            nextSequence = sequence;
+            highestSequence = sequence - 1;
+            requestedSequence = sequence;
+            started = true;
+        }
+        if (sequence < nextSequence || pending.containsKey(sequence)) {
+            duplicates++;
+            return;
+        }
+        if (sequence - nextSequence >= window) {
+            while (!pending.isEmpty()) skipGap(delivered);
+            lost += sequence - nextSequence;
+            nextSequence = sequence;
+            requestedSequence = Math.max(requestedSequence, sequence);
+        }
+        highestSequence = Math.max(highestSequence, sequence);
+        pending.put(sequence, message);
+        deliverReady(delivered);
+    }
+
+    /**
+     * Takes note of the last message sent, as advertised by a sender heartbeat. A stream which has not
+     * started yet is left alone, as it cannot tell the messages sent before the receiver joined.
+     *
+     * @param sequence  sequence number of the last message sent
+     */
+    void advertise(long sequence) {
+        if (!started || sequence <= highestSequence) return;
+        lastActivity = System.currentTimeMillis();
+        highestSequence = sequence;
+    }
+
+    /**
+     * Checks whether a message has already been received, so that its retransmitted fragments can be
+     * ignored.
+     *
+     * @param sequence  message sequence number
+     * @return  true if the message has already been delivered or is waiting, false otherwise
+     */
+    boolean hasReceived(long sequence) {
+        return started && (sequence < nextSequence || pending.containsKey(sequence));
+    }
+
+    /**
+     * Delivers the messages which follow the last delivered one without any gap. When the first gap
+     * moves forward, its repair attempts start over.
+     *
+     * @param delivered list the delivered messages are added to
+     */
+    private void deliverReady(List<ChatMessage> delivered) {
+        long start = nextSequence;
+        Map.Entry<Long, ChatMessage> first;
+        while ((first = pending.firstEntry()) != null && first.getKey() == nextSequence) {
+            delivered.add(pending.pollFirstEntry().getValue());
+            nextSequence++;
+        }
+        if (nextSequence != start) nackAttempts = 0;
+        if (!hasGap()) nextNackTime = 0;
+    }
+
+    /**
+     * Gives up the first gap, counting its messages as lost and delivering the ones which follow it.
+     *
+     * @param delivered list the delivered messages are added to
+     */
+    void skipGap(List<ChatMessage> delivered) {
+        if (!hasGap()) return;
+        long first = pending.isEmpty() ? highestSequence + 1 : pending.firstKey();
+        lost += first - nextSequence;
+        nextSequence = first;
+        deliverReady(delivered);
+    }
+
+    /**
+     * Checks whether some gaps have not been asked for yet.
+     *
+     * @return  true if there are new gaps, false otherwise
+     */
+    boolean hasNewGaps() {
+        return highestSequence > requestedSequence && hasGap();
+    }
+
+    /**
+     * Checks whether there is a gap waiting to be repaired.
+     *
+     * @return  true if some messages are missing, false otherwise
+     */
+    boolean hasGap() {
+        return started && highestSequence >= nextSequence;
+    }
+
+    /**
+     * Checks whether the gaps should be asked for again.
+     *
+     * @param now   current timestamp (in milliseconds)
+     * @return  true if the gaps are still there and the last request has not been answered in time
+     */
+    boolean isRetryDue(long now) {
+        return hasGap() && nextNackTime != 0 && now >= nextNackTime;
+    }
+
+    /**
+     * Collects the gaps to ask for, as couples made up by their first sequence number and their length,
+     * and marks them as asked for.
+     *
+     * @param all   whether all the gaps are collected, or only the new ones
+     * @param maxGaps   maximum number of gaps collected
+     * @param gaps  list the gaps are added to
+     */
+    void collectGaps(boolean all, int maxGaps, List<long[]> gaps) {
+        long from = all ? nextSequence : requestedSequence + 1;
+        long expected = nextSequence;
+        for (long sequence : pending.tailMap(from, true).keySet()) {
+            long start = Math.max(expected, from);
+            if (sequence > start) {
+                if (gaps.size() >= maxGaps) break;
+                gaps.add(new long[] {start, sequence - start});
+            }
+            expected = sequence + 1;
+        }
+        long start = Math.max(expected, from);
+        if (highestSequence >= start && gaps.size() < maxGaps) gaps.add(new long[] {start, highestSequence + 1 - start});
+        requestedSequence = Math.max(requestedSequence, highestSequence);
+    }
+
+    /**
+     * Records a repair request.
+     *
+     * @param now   current timestamp (in milliseconds)
+     * @param interval  time to wait for the repair (in milliseconds)
+     * @param retry whether all the gaps have been asked for again
+     */
+    void nackSent(long now, long interval, boolean retry) {
+        if (retry) nackAttempts++;
+        if (retry || nextNackTime == 0) nextNackTime = now + interval;
+    }
+
+    /**
+     * Gets the number of times the gaps have been asked for again since the first one moved forward.
+     *
+     * @return  repair attempts counter
+     */
+    int getNackAttempts() {
+        return nackAttempts;
+    }
+
+    /**
+     * Gets the sender address.
+     *
+     * @return  sender address
+     */
+    InetSocketAddress getSource() {
+        return source;
+    }
+
+    /**
+     * Gets the timestamp of the last received message.
+     *
+     * @return  last activity timestamp (in milliseconds)
+     */
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * Gets the number of duplicated messages received, and resets it.
+     *
+     * @return  duplicated messages counter
+     */
+    long takeDuplicates() {
+        long value = duplicates;
+        duplicates = 0;
+        return value;
+    }
+
+    /**
+     * Gets the number of messages given up, and resets it.
+     *
+     * @return  lost messages counter
+     */
+    long takeLost() {
+        long value = lost;
+        lost = 0;
+        return value;
+    }
+
+    /**
+     * Gets all the messages still waiting, giving up all the gaps.
+     *
+     * @return  the waiting messages, in order
+     */
+    List<ChatMessage> flush() {
+        List<ChatMessage> delivered = new ArrayList<>();
+        while (!pending.isEmpty()) skipGap(delivered);
+        return delivered;
+    }
+}
@@ -1,13 +1,18 @@
 package it.azraelsec.Client;
 
+import it.azraelsec.Chat.CDAManager;
 import it.azraelsec.Chat.ChatMessage;
+import it.azraelsec.Chat.HybridClock;
 import it.azraelsec.Chat.MessageReceiver;
 import it.azraelsec.Chat.MessageSender;
 import it.azraelsec.Notification.NotificationClientThread;
 import it.azraelsec.Protocol.Commands;
 import it.azraelsec.Protocol.Communication;
+import it.azraelsec.Protocol.Execution;
+import it.azraelsec.Protocol.RegistrationThrottledException;
 import it.azraelsec.Protocol.RemoteRegistration;
 import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
@@ -25,6 +30,7 @@ import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 
 /**
@@ -43,21 +49,47 @@ public class Client {
     private static int RMI_PORT = 3400;
     private static String SERVER_ADDRESS = "127.0.0.1";
     private static String DATA_DIR = "./client_data/";
+    private static boolean INLINE_NOTIFICATIONS = false;
+    private static int CHAT_BATCH_WINDOW = 0;
+    private static int CHAT_BUFFER_SIZE = 1024;
+    private static boolean CHAT_DROP_OLDEST = true;
+    private static int CHAT_RECEIVE_WINDOW = 1024;
+    private static int CHAT_RETRANSMIT_BUFFER = 1024;
+    private static int CHAT_REORDER_DELAY = 100;
+    private static final long RELAY_READ_INTERVAL = 100;
     private Socket clientSocket;
     private DataOutputStream clientOutputStream;
     private DataInputStream clientInputStream;
     private NotificationClientThread notificationThread;
-    private final MessageReceiver messageReceiver;
+    private MessageReceiver messageReceiver;
+    private long chatGroup;
+    private volatile boolean chatRelayed;
+    private final ReentrantLock connectionLock;
+    private final Deque<ChatMessage> relayedMessages;
+    private long relayedReceived;
+    private long relayedDropped;
     private MessageSender messageSender;
     private LocalSession session;
+    private RemoteRegistration registrationService;
+    private final Map<Commands, Execution> pushHandlers;
 
     /**
-     * Initializes {@code NotificationClientThread}, {@code MessageReceiver} and {@code LocalSession} objects.
+     * Initializes {@code NotificationClientThread} and {@code LocalSession} objects.
      */
     public Client() {
         notificationThread = new NotificationClientThread();
-        messageReceiver = new MessageReceiver();
+        messageReceiver = null;
+        chatGroup = 0;
+        chatRelayed = false;
+        relayedMessages = new ArrayDeque<>();
+        relayedReceived = 0;
+        relayedDropped = 0;
+        connectionLock = new ReentrantLock();
         session = null;
+        registrationService = null;
+        pushHandlers = new HashMap<>();
+        pushHandlers.put(Commands.NEW_NOTIFICATIONS, (args, ignore) -> notificationThread.addNotifications((String) args[0], (String) args[1]));
+        pushHandlers.put(Commands.CHAT_MESSAGE, (args, ignore) -> onRelayedMessage((String) args[0], (String) args[1], (String) args[2]));
     }
 
     /**
@@ -76,6 +108,7 @@ public class Client {
         RMI_PORT = Optional.ofNullable(cmdOptions.getInt("rmi_port")).orElseGet(() -> RMI_PORT);
         DATA_DIR = Optional.ofNullable(cmdOptions.getString("data_dir")).orElseGet(() -> DATA_DIR);
         SERVER_ADDRESS = Optional.ofNullable(cmdOptions.getString("server_address")).orElseGet(() -> SERVER_ADDRESS);
+        INLINE_NOTIFICATIONS = INLINE_NOTIFICATIONS || cmdOptions.getBoolean("inline_notifications");
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.out.println("TURING Client is shutting down...");
         }));
@@ -87,6 +120,9 @@ public class Client {
      * Tries to connect to the {@code Server} running instance, create references to the
      * streams for {@code Socket} I/O operations and starts the {@code NotificationClientThread}.
      * <p>
+     * With {@code INLINE_NOTIFICATIONS} the {@code NotificationClientThread} does not listen at all: the
+     * notifications are pushed by the {@code Server} on the command connection.
+     * <p>
      * This method needs to be called after {@code setup} method execution.
      *
      * @see DataInputStream
@@ -94,14 +130,42 @@ public class Client {
      * @throws IOException  if I/O errors occur
      */
     private void connect() throws IOException {
-        notificationThread.start();
+        HybridClock chatClock = new HybridClock();
+        messageReceiver = new MessageReceiver(CHAT_BUFFER_SIZE, CHAT_DROP_OLDEST, CHAT_RECEIVE_WINDOW, CHAT_REORDER_DELAY, chatClock);
+        if(!INLINE_NOTIFICATIONS) notificationThread.start();
         clientSocket = new Socket();
         clientSocket.connect(new InetSocketAddress(SERVER_ADDRESS, TCP_PORT));
         clientOutputStream = new DataOutputStream(clientSocket.getOutputStream());
         clientInputStream = new DataInputStream(clientSocket.getInputStream());
         messageReceiver.start();
-        messageSender = MessageSender.create();
+        messageSender = MessageSender.create(CHAT_BATCH_WINDOW, CHAT_RETRANSMIT_BUFFER, chatClock);
         if(messageSender == null) throw new IOException();
+        Thread relayReader = new Thread(this::readRelayedMessages, "ChatRelayReader");
+        relayReader.setDaemon(true);
+        relayReader.start();
+    }
+
+    /**
+     * Reads the chat messages relayed by the {@code Server} on the command connection every
+     * {@code RELAY_READ_INTERVAL}, while no command is running, so that the {@code Server} never
+     * waits for them to be read.
+     */
+    private void readRelayedMessages() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(RELAY_READ_INTERVAL);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            if (chatRelayed && connectionLock.tryLock()) {
+                try {
+                    Communication.receivePushed(clientInputStream, pushHandlers);
+                } catch (IOException ignore) {
+                } finally {
+                    connectionLock.unlock();
+                }
+            }
+        }
     }
 
     /**
@@ -118,6 +182,13 @@ public class Client {
                 RMI_PORT = configs.has("RMI_PORT") ? configs.getInt("RMI_PORT") : RMI_PORT;
                 DATA_DIR = configs.has("DATA_DIR") ? configs.getString("DATA_DIR") : DATA_DIR;
                 SERVER_ADDRESS = configs.has("SERVER_ADDRESS") ? configs.getString("SERVER_ADDRESS") : SERVER_ADDRESS;
+                INLINE_NOTIFICATIONS = configs.has("INLINE_NOTIFICATIONS") ? configs.getBoolean("INLINE_NOTIFICATIONS") : INLINE_NOTIFICATIONS;
+                CHAT_BATCH_WINDOW = configs.has("CHAT_BATCH_WINDOW") ? configs.getInt("CHAT_BATCH_WINDOW") : CHAT_BATCH_WINDOW;
+                CHAT_BUFFER_SIZE = configs.has("CHAT_BUFFER_SIZE") ? configs.getInt("CHAT_BUFFER_SIZE") : CHAT_BUFFER_SIZE;
+                CHAT_DROP_OLDEST = configs.has("CHAT_DROP_OLDEST") ? configs.getBoolean("CHAT_DROP_OLDEST") : CHAT_DROP_OLDEST;
+                CHAT_RECEIVE_WINDOW = configs.has("CHAT_RECEIVE_WINDOW") ? configs.getInt("CHAT_RECEIVE_WINDOW") : CHAT_RECEIVE_WINDOW;
+                CHAT_RETRANSMIT_BUFFER = configs.has("CHAT_RETRANSMIT_BUFFER") ? configs.getInt("CHAT_RETRANSMIT_BUFFER") : CHAT_RETRANSMIT_BUFFER;
+                CHAT_REORDER_DELAY = configs.has("CHAT_REORDER_DELAY") ? configs.getInt("CHAT_REORDER_DELAY") : CHAT_REORDER_DELAY;
             } catch (Exception ex) {
                 System.out.println("JSON parsing error for file:" + filePath);
                 System.out.println("That's the reason:" + ex.getMessage());
@@ -162,6 +233,7 @@ public class Client {
         argpars.addArgument("-d", "--data-dir").help("client data directory").type(String.class);
         argpars.addArgument("-c", "--config-file").help("server configuration file path").type(String.class);
         argpars.addArgument("-s", "--server-address").help("server IP address").type(String.class);
+        argpars.addArgument("--inline-notifications").help("receive the notifications on the command connection").action(Arguments.storeTrue());
 
         Namespace ns = null;
 
@@ -183,7 +255,8 @@ public class Client {
         } finally {
             try {
                 client.notificationThread.interrupt();
-                client.messageReceiver.interrupt();
+                if(client.messageReceiver != null) client.messageReceiver.interrupt();
+                if(client.messageSender != null) client.messageSender.close();
                 client.clientSocket.close();
                 client.clientInputStream.close();
                 client.clientOutputStream.close();
@@ -193,25 +266,78 @@ public class Client {
     }
 
     /**
-     * Register a new {@code User} into {@code UserDB} via RMI invocation.
+     * Register a new {@code User} into {@code UserDB} through the {@code Commands#REGISTER} command,
+     * on the main TCP connection.
      *
      * @param username  user's username
      * @param password  user's password
-     * @return  true if the register succeeded, false otherwise
+     */
+    private void register(String username, String password) {
+        Communication.send(clientOutputStream, clientInputStream, pushHandlers, ignore -> System.out.println("User " + username + " correctly registered!"),
+                System.err::println, Commands.REGISTER, username, password);
+    }
+
+    /**
+     * Registers all the {@code User}s listed into a file via a single RMI invocation.
+     * <p>
+     * Each line of the file contains a username and its password, separated by a space. If the
+     * {@code Server} throttles the attempt, the time to wait before retrying is printed.
+     *
+     * @param filePath  credentials file path
      * @throws RemoteException  if RMI exception occurs
      * @throws NotBoundException if registry lookup fault occurs
      */
-    private boolean register(String username, String password) throws RemoteException, NotBoundException {
-        RemoteRegistration registrationService;
-        Registry registry = LocateRegistry.getRegistry(SERVER_ADDRESS, RMI_PORT);
-        registrationService = (RemoteRegistration) registry.lookup(RemoteRegistration.NAME);
-        return registrationService.register(username, password);
+    private void registerAll(String filePath) throws RemoteException, NotBoundException {
+        List<String> usernames = new ArrayList<>();
+        List<String> passwords = new ArrayList<>();
+        try {
+            for (String line : Files.readAllLines(Paths.get(filePath))) {
+                String[] credentials = line.trim().split(" ");
+                if (credentials.length > 1) {
+                    usernames.add(credentials[0]);
+                    passwords.add(credentials[1]);
+                }
+            }
+        } catch (IOException ex) {
+            printException(ex);
+            return;
+        }
+        boolean[] results;
+        try {
+            results = getRegistrationService().registerAll(usernames.toArray(new String[0]), passwords.toArray(new String[0]));
+        } catch (RemoteException ex) {
+            if (!(ex.getCause() instanceof RegistrationThrottledException)) throw ex;
+            System.err.println(ex.getCause().getMessage());
+            return;
+        }
+        int registered = 0;
+        for (int i = 0; i < results.length; i++) {
+            if (results[i]) registered++;
+            else System.err.println("Error in user registration: " + usernames.get(i));
+        }
+        System.out.println(registered + " of " + results.length + " users correctly registered!");
+    }
+
+    /**
+     * Gets the remote {@code RemoteRegistration} object, looking it up only the first time.
+     *
+     * @return  the registration service
+     * @throws RemoteException  if RMI exception occurs
+     * @throws NotBoundException if registry lookup fault occurs
+     */
+    private RemoteRegistration getRegistrationService() throws RemoteException, NotBoundException {
+        if (registrationService == null) {
+            Registry registry = LocateRegistry.getRegistry(SERVER_ADDRESS, RMI_PORT);
+            registrationService = (RemoteRegistration) registry.lookup(RemoteRegistration.NAME);
+        }
+        return registrationService;
     }
 
     /**
      * Starts an edit session for a specific {@code Document}'s {@code Section}.
      * <p>
-     * Initializes a new multicast group for a {@code MessageReceiver} object too.
+     * Initializes a new multicast group for a {@code MessageReceiver} object too, unless the {@code Server}
+     * relays the chat on the command connection (it sends back 0 as address).
      *
      * @param docName   document filename
      * @param secNumber section index
@@ -222,15 +348,12 @@ public class Client {
             String filepath = chosenFilename != null ? chosenFilename : DATA_DIR + docName + "_" + secNumber;
             try (FileChannel fileChannel = FileChannel.open(Paths.get(filepath), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
                  OutputStream fileStream = Channels.newOutputStream(fileChannel)) {
-                Communication.sendAndReceiveStream(clientOutputStream, clientInputStream, address -> {
+                Communication.sendAndReceiveStream(clientOutputStream, clientInputStream, pushHandlers, address -> {
                     session.setOnEdit(filepath);
-                    long dAddress = Long.parseLong(address);
-                    try {
-                        messageReceiver.setNewGroup(dAddress);
-                    } catch (IOException ex) {
-                        ex.printStackTrace();
-                    }
-                }, fileStream, System.err::println, Commands.EDIT, docName, secNumber);
+                    chatGroup = Long.parseLong(address);
+                    chatRelayed = chatGroup == 0;
+                    if(!chatRelayed) messageReceiver.joinGroup(chatGroup);
+                }, fileStream, System.err::println, Commands.EDIT, session.getToken(), docName, secNumber);
             } catch (IOException ex) {
                 printException(ex);
             }
@@ -249,7 +372,7 @@ public class Client {
      */
     private void login(String username, String password, int notificationPort) {
         if (session == null)
-            Communication.send(clientOutputStream, clientInputStream, token -> {
+            Communication.send(clientOutputStream, clientInputStream, pushHandlers, token -> {
                 session = new LocalSession(token, username);
                 System.out.println("Correctly logged in as " + username);
             }, System.err::println, Commands.LOGIN, username, password, notificationPort);
@@ -263,9 +386,10 @@ public class Client {
     private void logout() {
         if (session != null) {
             if(!session.isEditing()) {
+                String token = session.getToken();
                 session = null;
                 notificationThread.clearNotificationList();
-                Communication.send(clientOutputStream, clientInputStream, null, null, Commands.LOGOUT);
+                Communication.send(clientOutputStream, clientInputStream, pushHandlers, null, null, Commands.LOGOUT, token);
             } else System.err.println("You should 'stopedit' before logging out");
         } else System.err.println("You're not logged in");
     }
@@ -277,16 +401,19 @@ public class Client {
     private void editEnd() {
         if (session != null) {
             if (session.isEditing()) {
-                Communication.send(clientOutputStream, clientInputStream, s -> {
+                Communication.send(clientOutputStream, clientInputStream, pushHandlers, s -> {
                     try (FileChannel fileChannel = FileChannel.open(Paths.get(session.getOnEditing()), StandardOpenOption.READ);
                          InputStream stream = Channels.newInputStream(fileChannel)) {
                         Communication.receiveAndSendStream(clientInputStream, clientOutputStream, stream);
                         session.setOnEdit(null);
-                        messageReceiver.setNewGroup(0L);
+                        if(!chatRelayed) messageReceiver.leaveGroup(chatGroup);
+                        chatGroup = 0;
+                        chatRelayed = false;
+                        relayedMessages.clear();
                     } catch (IOException ex) {
                         printException(ex);
                     }
-                }, System.err::println, Commands.EDIT_END);
+                }, System.err::println, Commands.EDIT_END, session.getToken());
             } else System.err.println("You're not editing any section");
         } else System.err.println("You're not logged in");
     }
@@ -299,7 +426,7 @@ public class Client {
      */
     private void create(String docName, int secNumber) {
         if (session != null)
-            Communication.send(clientOutputStream, clientInputStream, System.out::println, System.err::println, Commands.CREATE, docName, secNumber);
+            Communication.send(clientOutputStream, clientInputStream, pushHandlers, System.out::println, System.err::println, Commands.CREATE, session.getToken(), docName, secNumber);
         else System.err.println("You're not logged in");
     }
 
@@ -318,11 +445,11 @@ public class Client {
             String filename = chosenFilename != null ? chosenFilename : DATA_DIR + docName + "_" + secNumber;
             try (FileChannel fileChannel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
                  OutputStream fileStream = Channels.newOutputStream(fileChannel)) {
-                Communication.sendAndReceiveStream(clientOutputStream, clientInputStream, editor -> {
+                Communication.sendAndReceiveStream(clientOutputStream, clientInputStream, pushHandlers, editor -> {
                     if (editor.compareTo("None") != 0)
                         System.out.println(String.format("%s is editing the section right now", editor));
                     else System.out.println("None is editing this section");
-                }, fileStream, System.err::println, Commands.SHOW_SECTION, docName, secNumber);
+                }, fileStream, System.err::println, Commands.SHOW_SECTION, session.getToken(), docName, secNumber);
             } catch (IOException ex) {
                 printException(ex);
             }
@@ -334,7 +461,7 @@ public class Client {
      */
     private void documentsList() {
         if (session != null)
-            Communication.send(clientOutputStream, clientInputStream, System.out::println, System.err::println, Commands.LIST);
+            Communication.send(clientOutputStream, clientInputStream, pushHandlers, System.out::println, System.err::println, Commands.LIST, session.getToken());
         else System.err.println("You're not logged in");
     }
 
@@ -347,7 +474,9 @@ public class Client {
      * @param docName   document's name
      */
     private void share(String user, String docName) {
-        Communication.send(clientOutputStream, clientInputStream, System.out::println, System.err::println, Commands.SHARE, user, docName);
+        if (session != null)
+            Communication.send(clientOutputStream, clientInputStream, pushHandlers, System.out::println, System.err::println, Commands.SHARE, session.getToken(), user, docName);
+        else System.err.println("You're not logged in");
     }
 
     /**
@@ -363,11 +492,11 @@ public class Client {
             String filename = DATA_DIR + (outputName == null ? docName : outputName);
             try (FileChannel fileChannel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
                  OutputStream fileStream = Channels.newOutputStream(fileChannel)) {
-                Communication.sendAndReceiveStream(clientOutputStream, clientInputStream, onEditingSections -> {
+                Communication.sendAndReceiveStream(clientOutputStream, clientInputStream, pushHandlers, onEditingSections -> {
                     if (onEditingSections.compareTo("None") != 0)
                         System.out.println(String.format("These are the on editing sections: %s", onEditingSections));
                     else System.out.println("None is editing this document");
-                }, fileStream, System.err::println, Commands.SHOW_DOCUMENT, docName);
+                }, fileStream, System.err::println, Commands.SHOW_DOCUMENT, session.getToken(), docName);
             } catch (IOException ex) {
                 printException(ex);
             }
@@ -380,6 +509,11 @@ public class Client {
      */
     private void printNews() {
         if (session != null) {
+            try {
+                Communication.receivePushed(clientInputStream, pushHandlers);
+            } catch (IOException ex) {
+                printException(ex);
+            }
             List<String> notifications = notificationThread.getAllNotifications();
             if (!notifications.isEmpty())
                 System.out.println("You have permission on these new documents: " + String.join(",", notifications));
@@ -387,13 +521,40 @@ public class Client {
         } else System.err.println("You're not logged in");
     }
 
+    /**
+     * Prints out the {@code Server} metrics together with the delivery latency of the notifications
+     * received by this {@code Client} and its chat sending counters.
+     */
+    private void printStats() {
+        if (session != null)
+            Communication.send(clientOutputStream, clientInputStream, pushHandlers, stats -> {
+                System.out.println(stats);
+                System.out.println("notification receive latency: " + notificationThread.getReceiveLatency());
+                System.out.println(messageSender.stats());
+                System.out.println(messageReceiver.stats());
+                if(chatRelayed || relayedReceived > 0)
+                    System.out.println(String.format("chat relay: %d messages received, %d dropped", relayedReceived, relayedDropped));
+            }, System.err::println, Commands.STATS, session.getToken());
+        else System.err.println("You're not logged in");
+    }
+
     /**
      * Shows all the received {@code ChatMessage}s received since the last method invocation.
+     * <p>
+     * The relayed messages still waiting on the command connection are read first.
      */
     private void showMessages() {
         if(session != null) {
             if(session.isEditing()) {
-                ChatMessage[] unreadMessages = messageReceiver.getMessages();
+                if(chatRelayed) {
+                    try {
+                        Communication.receivePushed(clientInputStream, pushHandlers);
+                    } catch (IOException ex) {
+                        printException(ex);
+                    }
+                }
+                ChatMessage[] unreadMessages = chatRelayed ? relayedMessages.toArray(new ChatMessage[0]) : messageReceiver.getMessages(chatGroup);
+                relayedMessages.clear();
                 for(ChatMessage message : unreadMessages)
                     System.out.println(message);
             } else System.err.println("You're not editing any document");
@@ -401,18 +562,60 @@ public class Client {
     }
 
     /**
-     * Sends a new {@code ChatMessage} UDP multicast packet to every listening {@code MessageReceiver}.
+     * Shows a page of the archived chat of a {@code Document}, through the {@code Commands#CHAT_HISTORY} command,
+     * and tells how to get the next one.
+     *
+     * @param docName   document's name
+     * @param from  lower bound of the archiving timestamps (in milliseconds)
+     * @param to    upper bound of the archiving timestamps (in milliseconds)
+     */
+    private void chatHistory(String docName, long from, long to) {
+        if (session != null)
+            Communication.send(clientOutputStream, clientInputStream, pushHandlers, history -> {
+                String[] lines = history.split("\n", 2);
+                if (lines.length > 1) System.out.println(lines[1]);
+                else System.err.println("No messages in this range");
+                if (!lines[0].equals("-1"))
+                    System.out.println(String.format("More messages: history %s %s %s", docName, lines[0], to));
+            }, System.err::println, Commands.CHAT_HISTORY, session.getToken(), docName, Long.toString(from), Long.toString(to));
+        else System.err.println("You're not logged in");
+    }
+
+    /**
+     * Stores a {@code ChatMessage} relayed by the {@code Server}, until it is shown. When too many messages
+     * are waiting, the oldest one or the new one is dropped, as for the multicast chat. It runs holding the
+     * {@code connectionLock}.
+     *
+     * @param sender    sender username
+     * @param text  message text
+     * @param time  relaying timestamp (in milliseconds)
+     */
+    private void onRelayedMessage(String sender, String text, String time) {
+        relayedReceived++;
+        if(!chatRelayed) return;
+        if(relayedMessages.size() >= CHAT_BUFFER_SIZE) {
+            relayedDropped++;
+            if(!CHAT_DROP_OLDEST) return;
+            relayedMessages.poll();
+        }
+        relayedMessages.add(new ChatMessage(sender, text, Long.parseLong(time)));
+    }
+
+    /**
+     * Sends a new {@code ChatMessage} UDP multicast packet to every listening {@code MessageReceiver}, or
+     * through the {@code Commands#CHAT_SEND} command when the {@code Server} relays the chat.
      *
      * @param text  message text
      */
     private void sendMessage(String text) {
         if(session != null) {
             if(session.isEditing()) {
-                InetAddress multicastAddress;
-                if((multicastAddress = messageReceiver.getActiveGroup()) != null) {
+                if(chatRelayed)
+                    Communication.send(clientOutputStream, clientInputStream, pushHandlers, ignore -> {}, System.err::println, Commands.CHAT_SEND, session.getToken(), text);
+                else if(chatGroup != 0) {
                     try {
                         ChatMessage message = new ChatMessage(session.getUsername(), text);
-                        InetSocketAddress groupAddress = new InetSocketAddress(multicastAddress, UDP_PORT);
+                        InetSocketAddress groupAddress = new InetSocketAddress(CDAManager.decimalToAddress(chatGroup), UDP_PORT);
                         messageSender.sendMessage(message, groupAddress);
                     } catch (IOException ex) {
                         printException(ex);
@@ -439,6 +642,7 @@ public class Client {
                 "The following commands are available:\n" +
                         "  help: to show this help message\n\n" +
                         "  register USER PASS: to register a new account with username USER and password PASS\n" +
+                        "  registerall FILE: to register all the accounts listed in FILE (a USER PASS couple per line)\n" +
                         "  login USER PASS: to login using USER and PASS credentials\n" +
                         "  create DOC SEC: to create a new document named DOC and containing SEC sections\n" +
                         "  edit DOC SEC (TMP): to edit the section SEC of DOC document (using TMP temporary filename)\n" +
@@ -448,9 +652,11 @@ public class Client {
                         "  logout: to logout\n" +
                         "  list: to list all the documents you are able to see and edit\n" +
                         "  share USER DOC: to share a document with someone\n" +
-                        "  news: to get all the news\n\n" +
+                        "  news: to get all the news\n" +
+                        "  stats: to show the server metrics, the notifications latency and the chat counters\n\n" +
                         "  receive: to get all the unread chat messages\n" +
-                        "  send TEXT: to send the TEXT message into the document chat";
+                        "  send TEXT: to send the TEXT message into the document chat\n" +
+                        "  history DOC [FROM [TO]]: to show the DOC chat history between the FROM and TO timestamps (in milliseconds)";
         System.out.println(message);
     }
 
@@ -471,6 +677,7 @@ public class Client {
             String[] args = argsLine.split(" ");
             if (argsLine.length() > 0 && args.length > 0) {
                 command = args[0];
+                connectionLock.lock();
                 try {
                     switch (command) {
                         case "exit":
@@ -482,12 +689,13 @@ public class Client {
                             if (args.length > 2) {
                                 String username = args[1];
                                 String password = args[2];
-                                if (register(username, password))
-                                    System.out.println("User " + username + " correctly registered!");
-                                else
-                                    System.out.println("Error in user registration: user probably already exists");
+                                register(username, password);
                             } else throw new CommandDispatchingException();
                             break;
+                        case "registerall":
+                            if (args.length > 1) registerAll(args[1]);
+                            else throw new CommandDispatchingException();
+                            break;
                         case "login":
                             if (args.length > 2) {
                                 String username = args[1];
@@ -559,6 +767,9 @@ public class Client {
                         case "news":
                             printNews();
                             break;
+                        case "stats":
+                            printStats();
+                            break;
                         case "receive":
                             showMessages();
                             break;
@@ -568,6 +779,18 @@ public class Client {
                                 sendMessage(text);
                             } else throw new CommandDispatchingException();
                             break;
+                        case "history":
+                            if (args.length > 1) {
+                                try {
+                                    String docName = args[1];
+                                    long from = args.length > 2 ? Long.parseLong(args[2]) : 0L;
+                                    long to = args.length > 3 ? Long.parseLong(args[3]) : Long.MAX_VALUE;
+                                    chatHistory(docName, from, to);
+                                } catch (NumberFormatException ex) {
+                                    throw new CommandDispatchingException();
+                                }
+                            } else throw new CommandDispatchingException();
+                            break;
                         case "help":
                             printCommandsHelp();
                             break;
@@ -576,6 +799,8 @@ public class Client {
                     }
                 } catch (CommandDispatchingException ex) {
                     System.err.println("Error in command arguments dispatching");
+                } finally {
+                    connectionLock.unlock();
                 }
             }
         } while (!dispatchingShutdown);
@@ -49,9 +49,9 @@ class LocalSession {
     }
 
     /**
-     * Gets the actual session token.
+     * Gets the actual session token, which is sent with every request.
      *
-     * @deprecated
+     * @return  the session token
      */
     String getToken() {
         return sessionToken;
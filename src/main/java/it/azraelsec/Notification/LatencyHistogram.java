@@ -0,0 +1,83 @@
+package it.azraelsec.Notification;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The {@code LatencyHistogram} class collects latency samples (in milliseconds) into power of two
+ * buckets, so that recording a sample is lock-free and costs a couple of atomic increments.
+ * <p>
+ * The percentiles are approximated by the upper bound of the bucket they fall into.
+ *
+ * @author Federico Gerardi
+ * @author https://azraelsec.github.io/
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 40;
+    private final AtomicLongArray buckets;
+    private final AtomicLong count;
+    private final AtomicLong sum;
+    private final AtomicLong max;
+
+    /**
+     * Initializes an empty {@code LatencyHistogram}.
+     */
+    public LatencyHistogram() {
+        buckets = new AtomicLongArray(BUCKETS);
+        count = new AtomicLong();
+        sum = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+    /**
+     * Records a latency sample. Negative samples (clock skew) are recorded as 0.
+     *
+     * @param millis    latency (in milliseconds)
+     */
+    public void record(long millis) {
+        long value = Math.max(0, millis);
+        buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * Gets the number of recorded samples.
+     *
+     * @return  samples counter
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Gets the approximated percentile.
+     *
+     * @param percentile    percentile (between 0 and 100)
+     * @return  the upper bound of the bucket the percentile falls into (in milliseconds)
+     */
+    public long getPercentile(double percentile) {
+        long total = count.get();
+        if (total == 0) return 0;
+        long threshold = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= Math.max(1, threshold)) return Math.min(max.get(), i == 0 ? 0 : (1L << i) - 1);
+        }
+        return max.get();
+    }
+
+    /**
+     * Gets a printable summary of the histogram.
+     *
+     * @return  the histogram summary
+     */
+    @Override
+    public String toString() {
+        long total = count.get();
+        return String.format("%d samples, avg %d ms, p50 %d ms, p90 %d ms, p99 %d ms, max %d ms", total,
+                total == 0 ? 0 : sum.get() / total, getPercentile(50), getPercentile(90), getPercentile(99), max.get());
+    }
+}
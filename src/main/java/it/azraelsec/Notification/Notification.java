@@ -0,0 +1,85 @@
+package it.azraelsec.Notification;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * The {@code Notification} class represents a single notification together with the moment it has
+ * been created, so that its delivery latency can be measured along the whole path.
+ * <p>
+ * A {@code NEW_NOTIFICATIONS} {@code Commands} carries two comma separated lists: the notifications
+ * and their creation timestamps (in milliseconds), in the same order.
+ *
+ * @author Federico Gerardi
+ * @author https://azraelsec.github.io/
+ */
+public final class Notification {
+    private final String document;
+    private final long creationTime;
+
+    /**
+     * Initializes the {@code Notification}.
+     *
+     * @param document  document name (or notification text)
+     * @param creationTime  creation timestamp (in milliseconds)
+     */
+    public Notification(String document, long creationTime) {
+        this.document = document;
+        this.creationTime = creationTime;
+    }
+
+    /**
+     * Gets the document name.
+     *
+     * @return  document name
+     */
+    public String getDocument() {
+        return document;
+    }
+
+    /**
+     * Gets the creation timestamp.
+     *
+     * @return  creation timestamp (in milliseconds)
+     */
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    /**
+     * Joins the documents of the notifications, as they are sent into a {@code NEW_NOTIFICATIONS}.
+     *
+     * @param notifications notifications batch
+     * @return  comma separated documents
+     */
+    public static String joinDocuments(List<Notification> notifications) {
+        return notifications.stream().map(Notification::getDocument).collect(Collectors.joining(","));
+    }
+
+    /**
+     * Joins the creation timestamps of the notifications, as they are sent into a {@code NEW_NOTIFICATIONS}.
+     *
+     * @param notifications notifications batch
+     * @return  comma separated timestamps
+     */
+    public static String joinCreationTimes(List<Notification> notifications) {
+        return notifications.stream().map(notification -> Long.toString(notification.getCreationTime())).collect(Collectors.joining(","));
+    }
+
+    /**
+     * Records the delivery latency of each notification, given its comma separated creation timestamps.
+     * Malformed timestamps are ignored.
+     *
+     * @param creationTimes comma separated timestamps
+     * @param histogram target histogram
+     */
+    public static void recordLatencies(String creationTimes, LatencyHistogram histogram) {
+        long now = System.currentTimeMillis();
+        for (String creationTime : creationTimes.split(",")) {
+            try {
+                histogram.record(now - Long.parseLong(creationTime));
+            } catch (NumberFormatException ignore) {
+            }
+        }
+    }
+}
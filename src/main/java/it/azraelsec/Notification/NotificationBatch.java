@@ -0,0 +1,65 @@
+package it.azraelsec.Notification;
+
+import java.util.List;
+
+/**
+ * The {@code NotificationBatch} class represents a batch of notifications taken from a {@code User}
+ * to be sent.
+ * <p>
+ * The notifications are not removed for good when the batch is taken: the sender has to acknowledge
+ * the batch once it has been written, or to restore it if the delivery failed, so that its
+ * notifications are put back and sent again later.
+ *
+ * @author Federico Gerardi
+ * @author https://azraelsec.github.io/
+ */
+public final class NotificationBatch {
+    private final List<Notification> notifications;
+    private final Runnable onDelivered;
+    private final Runnable onFailed;
+
+    /**
+     * Initializes the {@code NotificationBatch}.
+     *
+     * @param notifications batch notifications
+     * @param onDelivered   routine which acknowledges the notifications (it can be null)
+     * @param onFailed  routine which puts the notifications back (it can be null)
+     */
+    public NotificationBatch(List<Notification> notifications, Runnable onDelivered, Runnable onFailed) {
+        this.notifications = notifications;
+        this.onDelivered = onDelivered;
+        this.onFailed = onFailed;
+    }
+
+    /**
+     * Gets the notifications of the batch.
+     *
+     * @return  notifications list
+     */
+    public List<Notification> getNotifications() {
+        return notifications;
+    }
+
+    /**
+     * Checks if the batch carries no notification.
+     *
+     * @return  true if the batch is empty, false otherwise
+     */
+    public boolean isEmpty() {
+        return notifications.isEmpty();
+    }
+
+    /**
+     * Acknowledges the notifications, once they have been sent.
+     */
+    public void acknowledge() {
+        if (onDelivered != null) onDelivered.run();
+    }
+
+    /**
+     * Puts the notifications back, since they could not be sent.
+     */
+    public void restore() {
+        if (onFailed != null) onFailed.run();
+    }
+}
@@ -7,33 +7,40 @@ import it.azraelsec.Protocol.Result;
 
 import java.io.*;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * The {@code NotificationClientThread} class is a Thread implementation that acts like a
- * reverse TCP server: waits for new connection using multiplexing (to ensure that a gentle
- * termination process is adopted) and when a new one is created, it exploits the {@code Protocol}
- * package to serve two kinds of commands: NEW_NOTIFICATIONS and EXIT.
+ * reverse TCP server: it serves all the incoming connections through a single {@code Selector},
+ * in non-blocking mode, and exploits the {@code Protocol} package to serve two kinds of commands:
+ * NEW_NOTIFICATIONS and EXIT.
+ * <p>
+ * Every connection has got its own read buffer, where the commands are decoded as soon as they are
+ * complete, and its own queue of results to write back. This way a second (or a reconnecting)
+ * {@code Server} connection is served while the previous one is still open.
  * <p>
  * The {@code NEW_NOTIFICATIONS} makes the client to add the incoming notifications to its internal
- * {@code List}, to allow the {@code Client} to fetch them all asynchronously.
+ * lock-free queue, to allow the {@code Client} to fetch them all asynchronously. Their delivery
+ * latency, measured from their creation on the {@code Server}, is recorded too.
  * <p>
- * The {@code EXIT} tells the {@code NotificationClientThread} that the actual session is about
- * to be ended up. This way, it can be shutdown in a gentle way.
+ * The {@code EXIT} tells the {@code NotificationClientThread} that the related session is about
+ * to be ended up. This way, the connection can be closed in a gentle way.
  *
  * @author Federico Gerardi
  * @author https://azraelsec.github.io/
  */
 public class NotificationClientThread extends Thread {
-    private final List<String> localNotificationQueue;
+    private static final int BUFFER_SIZE = 1024;
+    private final Queue<String> localNotificationQueue;
     private final HashMap<Commands, Execution> handlers;
-    private boolean closing;
-    private int servingPort;
+    private final LatencyHistogram receiveLatency;
+    private volatile int servingPort;
 
     /**
      * Initializes the {@code NotificationClientThread}.
@@ -43,7 +50,8 @@ public class NotificationClientThread extends Thread {
         handlers = new HashMap<>();
         handlers.put(Commands.NEW_NOTIFICATIONS, this::onNews);
         handlers.put(Commands.EXIT, this::onClosing);
-        this.localNotificationQueue = new ArrayList<>();
+        this.localNotificationQueue = new ConcurrentLinkedQueue<>();
+        receiveLatency = new LatencyHistogram();
     }
 
     /**
@@ -52,43 +60,29 @@ public class NotificationClientThread extends Thread {
      */
     @Override
     public void run() {
-        Socket notificationSocket = null;
-        DataInputStream inputStream = null;
-        DataOutputStream outputStream = null;
         ServerSocketChannel socketChannel = null;
-        Selector selector;
+        Selector selector = null;
         try {
-            ServerSocket socket;
             socketChannel = ServerSocketChannel.open();
-            socket = socketChannel.socket();
-            socket.bind(new InetSocketAddress(servingPort));
-            servingPort = socket.getLocalPort();
+            socketChannel.bind(new InetSocketAddress(servingPort));
+            servingPort = socketChannel.socket().getLocalPort();
             socketChannel.configureBlocking(false);
             selector = Selector.open();
             socketChannel.register(selector, SelectionKey.OP_ACCEPT);
             while (!Thread.currentThread().isInterrupted()) {
                 selector.select();
-                Set<SelectionKey> readyKeys = selector.selectedKeys();
-                Iterator<SelectionKey> iterator = readyKeys.iterator();
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
                 while (iterator.hasNext()) {
                     SelectionKey key = iterator.next();
                     iterator.remove();
-
                     try {
-                        if (key.isAcceptable()) {
-                            notificationSocket = socketChannel.accept().socket();
-                            outputStream = new DataOutputStream(notificationSocket.getOutputStream());
-                            inputStream = new DataInputStream(notificationSocket.getInputStream());
-                            closing = false;
-                            while (!closing)
-                                Communication.receive(inputStream, outputStream, handlers);
+                        if (key.isAcceptable()) onAccept(socketChannel, selector);
+                        else {
+                            if (key.isValid() && key.isReadable()) onRead(key);
+                            if (key.isValid() && key.isWritable()) onWrite(key);
                         }
                     } catch (IOException ex) {
-                        key.cancel();
-                        try {
-                            key.channel().close();
-                        } catch (IOException ignore) {
-                        }
+                        closeConnection(key);
                     }
                 }
             }
@@ -97,15 +91,152 @@ public class NotificationClientThread extends Thread {
             ex.printStackTrace();
         } finally {
             try {
+                if (selector != null) {
+                    for (SelectionKey key : selector.keys())
+                        key.channel().close();
+                    selector.close();
+                }
                 if (socketChannel != null) socketChannel.close();
-                if (notificationSocket != null) notificationSocket.close();
-                if (outputStream != null) outputStream.close();
-                if (inputStream != null) inputStream.close();
             } catch (IOException ignore) {
             }
         }
     }
 
+    /**
+     * Accepts a new connection and registers it to the {@code Selector}.
+     *
+     * @param socketChannel listening channel
+     * @param selector  connections selector
+     * @throws IOException  if an I/O error occurs
+     */
+    private void onAccept(ServerSocketChannel socketChannel, Selector selector) throws IOException {
+        SocketChannel channel = socketChannel.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new Connection());
+    }
+
+    /**
+     * Reads the available data and handles all the complete commands.
+     *
+     * @param key   connection key
+     * @throws IOException  if an I/O error occurs
+     */
+    private void onRead(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        int read;
+        while ((read = channel.read(connection.input)) > 0)
+            if (!connection.input.hasRemaining()) connection.grow();
+        connection.input.flip();
+        Object[] command;
+        while (!connection.closing && (command = decode(connection.input)) != null)
+            dispatch(connection, (Commands) command[0], (Object[]) command[1]);
+        connection.input.compact();
+        if (read < 0) closeConnection(key);
+        else updateInterest(key);
+    }
+
+    /**
+     * Writes the pending results and closes the connection if it has been asked to.
+     *
+     * @param key   connection key
+     * @throws IOException  if an I/O error occurs
+     */
+    private void onWrite(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        ByteBuffer result;
+        while ((result = connection.output.peek()) != null) {
+            channel.write(result);
+            if (result.hasRemaining()) return;
+            connection.output.poll();
+        }
+        if (connection.closing) closeConnection(key);
+        else updateInterest(key);
+    }
+
+    /**
+     * Decodes a single command from the buffer, if it is complete.
+     *
+     * @param buffer    read buffer (in read mode)
+     * @return  the command and its arguments or null if the command is not complete yet
+     * @throws IOException  if an unexpected command is received
+     */
+    private Object[] decode(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < Integer.BYTES) return null;
+        buffer.mark();
+        Commands command;
+        try {
+            command = Commands.getCommand(buffer.getInt());
+        } catch (IllegalArgumentException ex) {
+            throw new IOException(ex.getMessage());
+        }
+        if (command == Commands.EXIT) return new Object[] {command, new Object[0]};
+        if (command != Commands.NEW_NOTIFICATIONS) throw new IOException("Unexpected command: " + command);
+        Object[] args = new Object[2];
+        for (int i = 0; i < args.length; i++) {
+            if ((args[i] = decodeString(buffer)) == null) {
+                buffer.reset();
+                return null;
+            }
+        }
+        return new Object[] {command, args};
+    }
+
+    /**
+     * Decodes a {@code String} argument from the buffer, if it is complete.
+     *
+     * @param buffer    read buffer (in read mode)
+     * @return  the decoded string or null if it is not complete yet
+     * @throws IOException  if the argument length is invalid
+     */
+    private String decodeString(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < Integer.BYTES) return null;
+        int length = buffer.getInt();
+        if (length < 0) throw new IOException("Invalid argument length");
+        if (buffer.remaining() < length) return null;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes);
+    }
+
+    /**
+     * Runs the command handler, queueing its result.
+     *
+     * @param connection    connection state
+     * @param command   received command
+     * @param args  command arguments
+     */
+    private void dispatch(Connection connection, Commands command, Object[] args) {
+        handlers.get(command).run(args, (state, result) -> connection.output.add(Communication.encode(state, result)));
+        if (command == Commands.EXIT) connection.closing = true;
+    }
+
+    /**
+     * Updates the interest set of the connection: it reads until it is closing and writes only
+     * when there are pending results.
+     *
+     * @param key   connection key
+     */
+    private void updateInterest(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        key.interestOps((connection.closing ? 0 : SelectionKey.OP_READ) | (connection.output.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+    }
+
+    /**
+     * Closes a connection.
+     *
+     * @param key   connection key
+     */
+    private void closeConnection(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignore) {
+        }
+    }
+
     /**
      * Handles the {@code NEW_NOTIFICATIONS} {@code Commands}, adding the notifications to the
      * pre-existing ones, present in the queue.
@@ -114,31 +245,47 @@ public class NotificationClientThread extends Thread {
      * @param sendback  execution result way
      */
     private void onNews(Object[] args, Result sendback) {
-        synchronized (localNotificationQueue) {
-            localNotificationQueue.add((String) args[0]);
-        }
+        addNotifications((String) args[0], (String) args[1]);
         sendback.send(Commands.SUCCESS, "Notification has been added to client's notifications queue");
     }
 
     /**
      * Handles the {@code EXIT} {@code Commands}, notifying the {@code NotificationClientThread} that
-     * the requests handle loop needs to ends up.
+     * the connection needs to be closed.
      *
      * @param args  command arguments
      * @param sendback  execution result way
      */
     private void onClosing(Object[] args, Result sendback) {
-        closing = true;
         sendback.send(Commands.SUCCESS, "Notification server is closing");
     }
 
+    /**
+     * Adds the notifications to the queue and records their delivery latency. It is used for the
+     * notifications received on the command connection too.
+     *
+     * @param notifications comma separated notifications
+     * @param creationTimes comma separated creation timestamps
+     */
+    public void addNotifications(String notifications, String creationTimes) {
+        localNotificationQueue.add(notifications);
+        Notification.recordLatencies(creationTimes, receiveLatency);
+    }
+
+    /**
+     * Gets the delivery latency of the received notifications.
+     *
+     * @return  the latency histogram
+     */
+    public LatencyHistogram getReceiveLatency() {
+        return receiveLatency;
+    }
+
     /**
      * Clears the notifications queue.
      */
     public void clearNotificationList() {
-        synchronized (localNotificationQueue) {
-            localNotificationQueue.clear();
-        }
+        localNotificationQueue.clear();
     }
 
     /**
@@ -148,12 +295,9 @@ public class NotificationClientThread extends Thread {
      */
     public ArrayList<String> getAllNotifications() {
         ArrayList<String> notifications = new ArrayList<>();
-        synchronized (localNotificationQueue) {
-            if(!localNotificationQueue.isEmpty()) {
-                notifications.addAll(localNotificationQueue);
-                localNotificationQueue.clear();
-            }
-        }
+        String notification;
+        while ((notification = localNotificationQueue.poll()) != null)
+            notifications.add(notification);
         return notifications;
     }
 
@@ -165,4 +309,35 @@ public class NotificationClientThread extends Thread {
     public int getNotificationLocalPort() {
         return servingPort;
     }
+
+    /**
+     * The {@code Connection} class holds the state of a single {@code Server} connection.
+     *
+     * @author Federico Gerardi
+     * @author https://azraelsec.github.io/
+     */
+    private static class Connection {
+        private ByteBuffer input;
+        private final Queue<ByteBuffer> output;
+        private boolean closing;
+
+        /**
+         * Initializes the {@code Connection}.
+         */
+        Connection() {
+            input = ByteBuffer.allocate(BUFFER_SIZE);
+            output = new ArrayDeque<>();
+            closing = false;
+        }
+
+        /**
+         * Doubles the read buffer, keeping its content.
+         */
+        void grow() {
+            ByteBuffer bigger = ByteBuffer.allocate(input.capacity() * 2);
+            input.flip();
+            bigger.put(input);
+            input = bigger;
+        }
+    }
 }
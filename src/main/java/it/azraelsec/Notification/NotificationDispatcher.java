@@ -0,0 +1,402 @@
+package it.azraelsec.Notification;
+
+import it.azraelsec.Protocol.Commands;
+import it.azraelsec.Protocol.Communication;
+import it.azraelsec.Server.User;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The {@code NotificationDispatcher} class is a Thread implementation that owns all the reverse
+ * connections to the {@code NotificationClientThread}s and sends the notifications through them.
+ * <p>
+ * Every session just adds a {@code Registration} to the dispatcher: the connections are handled by
+ * a single {@code Selector} in non-blocking mode, while a shared work queue collects the
+ * registrations whose {@code User} has got new notifications. This way a {@code NEW_NOTIFICATIONS}
+ * {@code Commands} is only built for the users that actually have pending items.
+ * <p>
+ * The {@code Client} answers every command with a result: the dispatcher does not need it, so the
+ * results are just skipped. They are counted anyway, so that a connection is closed only after the
+ * {@code EXIT} has been acknowledged and the {@code NotificationClientThread} is not cut off while
+ * still reading.
+ * <p>
+ * A registration has got at most one {@code NotificationBatch} in flight: the next one is taken from the
+ * {@code User} only once the frame of the previous one has been completely written and acknowledged, so a
+ * large offline backlog is streamed from the outbox a batch at a time instead of being loaded at once. The
+ * batch whose frame is still queued when the connection breaks is restored, so that it is delivered later on.
+ * The send latency of every notification and the failed deliveries are recorded into the
+ * {@code NotificationMetrics}.
+ *
+ * @author Federico Gerardi
+ * @author https://azraelsec.github.io/
+ */
+public class NotificationDispatcher extends Thread {
+    private final Selector selector;
+    private final Queue<Runnable> pendingTasks;
+    private final Queue<Registration> workQueue;
+    private final ByteBuffer readBuffer;
+
+    /**
+     * Initializes the {@code NotificationDispatcher}.
+     *
+     * @throws IOException  if the {@code Selector} cannot be opened
+     */
+    public NotificationDispatcher() throws IOException {
+        selector = Selector.open();
+        pendingTasks = new ConcurrentLinkedQueue<>();
+        workQueue = new ConcurrentLinkedQueue<>();
+        readBuffer = ByteBuffer.allocate(1024);
+        super.setDaemon(true);
+        super.setName("NotificationDispatcher");
+    }
+
+    /**
+     * Registers a new session: the dispatcher connects back to the {@code NotificationClientThread}
+     * and starts delivering the {@code User}'s notifications.
+     *
+     * @param user  session user
+     * @param hostname  client hostname
+     * @param port  client notification listening port
+     * @return  the session registration
+     */
+    public Registration register(User user, String hostname, int port) {
+        Registration registration = new Registration(user, new InetSocketAddress(hostname, port));
+        user.setNotificationListener(registration.listener);
+        submit(() -> connect(registration));
+        return registration;
+    }
+
+    /**
+     * Unregisters a session: an {@code EXIT} {@code Commands} is sent to the
+     * {@code NotificationClientThread} and the connection is closed.
+     *
+     * @param registration  session registration
+     */
+    public void unregister(Registration registration) {
+        registration.user.removeNotificationListener(registration.listener);
+        submit(() -> {
+            registration.closing = true;
+            if (registration.channel != null && registration.channel.isConnected()) {
+                enqueue(registration, new Frame(Communication.encode(Commands.EXIT), null, null));
+            } else close(registration);
+        });
+    }
+
+    /**
+     * Runs the selection loop: executes the submitted tasks, builds the frames for the signaled
+     * registrations and serves the ready channels.
+     */
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                selector.select();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                return;
+            }
+            Runnable task;
+            while ((task = pendingTasks.poll()) != null)
+                task.run();
+            Registration registration;
+            while ((registration = workQueue.poll()) != null)
+                prepareNotifications(registration);
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                Registration keyRegistration = (Registration) key.attachment();
+                try {
+                    if (key.isValid() && key.isConnectable()) onConnect(keyRegistration);
+                    if (key.isValid() && key.isReadable()) onRead(keyRegistration);
+                    if (key.isValid() && key.isWritable()) onWrite(keyRegistration);
+                } catch (IOException ex) {
+                    close(keyRegistration);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a task to be run by the dispatcher thread and wakes it up.
+     *
+     * @param task  task to run
+     */
+    private void submit(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Puts the registration into the work queue, unless it is already there.
+     *
+     * @param registration  session registration
+     */
+    private void signal(Registration registration) {
+        if (registration.signaled.compareAndSet(false, true)) {
+            workQueue.add(registration);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Starts the non-blocking connection to the {@code NotificationClientThread}.
+     *
+     * @param registration  session registration
+     */
+    private void connect(Registration registration) {
+        if (registration.closing) return;
+        try {
+            registration.channel = SocketChannel.open();
+            registration.channel.configureBlocking(false);
+            if (registration.channel.connect(registration.address)) {
+                registration.key = registration.channel.register(selector, SelectionKey.OP_READ, registration);
+                signal(registration);
+            } else registration.key = registration.channel.register(selector, SelectionKey.OP_CONNECT, registration);
+        } catch (IOException ex) {
+            System.out.println("Notification connection failed: " + registration.address);
+            close(registration);
+        }
+    }
+
+    /**
+     * Completes the connection and delivers the notifications queued in the meantime.
+     *
+     * @param registration  session registration
+     * @throws IOException  if the connection fails
+     */
+    private void onConnect(Registration registration) throws IOException {
+        if (registration.channel.finishConnect()) {
+            updateInterest(registration);
+            signal(registration);
+        }
+    }
+
+    /**
+     * Reads and skips the results sent back by the {@code Client}, counting them.
+     *
+     * @param registration  session registration
+     * @throws IOException  if an I/O error occurs
+     */
+    private void onRead(Registration registration) throws IOException {
+        int read;
+        while ((read = registration.channel.read(readBuffer)) > 0) {
+            readBuffer.flip();
+            skipResults(registration);
+            readBuffer.clear();
+        }
+        if (read < 0 || (registration.closing && registration.outbound.isEmpty() && registration.pendingResults == 0))
+            close(registration);
+    }
+
+    /**
+     * Skips the results contained into the read buffer. Every result is a {@code SUCCESS} or
+     * {@code FAILURE} code followed by a {@code String}, so its size is known after the first 8 bytes.
+     *
+     * @param registration  session registration
+     */
+    private void skipResults(Registration registration) {
+        while (readBuffer.hasRemaining()) {
+            if (registration.resultRemaining > 0) {
+                int skipped = Math.min(registration.resultRemaining, readBuffer.remaining());
+                readBuffer.position(readBuffer.position() + skipped);
+                registration.resultRemaining -= skipped;
+                if (registration.resultRemaining == 0) registration.pendingResults--;
+            } else {
+                registration.resultHeader.put(readBuffer.get());
+                if (!registration.resultHeader.hasRemaining()) {
+                    registration.resultHeader.flip();
+                    registration.resultHeader.getInt();
+                    registration.resultRemaining = registration.resultHeader.getInt();
+                    registration.resultHeader.clear();
+                    if (registration.resultRemaining <= 0) {
+                        registration.resultRemaining = 0;
+                        registration.pendingResults--;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the outbound frames until the channel accepts them.
+     *
+     * @param registration  session registration
+     * @throws IOException  if an I/O error occurs
+     */
+    private void onWrite(Registration registration) throws IOException {
+        Frame frame;
+        while ((frame = registration.outbound.peek()) != null) {
+            registration.channel.write(frame.buffer);
+            if (frame.buffer.hasRemaining()) return;
+            registration.outbound.poll();
+            if (frame.batch != null) {
+                frame.batch.acknowledge();
+                NotificationMetrics.recordSent(frame.creationTimes);
+                registration.inFlight = false;
+                pullBatch(registration);
+            }
+        }
+        if (registration.closing && registration.pendingResults == 0) close(registration);
+        else updateInterest(registration);
+    }
+
+    /**
+     * Handles a signaled registration, taking the next batch of the {@code User}'s unread notifications.
+     *
+     * @param registration  session registration
+     */
+    private void prepareNotifications(Registration registration) {
+        registration.signaled.set(false);
+        pullBatch(registration);
+    }
+
+    /**
+     * Takes the next batch of the {@code User}'s unread notifications into a {@code NEW_NOTIFICATIONS}
+     * frame, unless another batch is still in flight: the next one is pulled once its frame has been written.
+     * <p>
+     * While the connection is not established yet, the notifications are left into the
+     * {@code User} and collected when the connection completes.
+     *
+     * @param registration  session registration
+     */
+    private void pullBatch(Registration registration) {
+        if (registration.inFlight || registration.closing || registration.channel == null || !registration.channel.isConnected()) return;
+        NotificationBatch batch = registration.user.getUnreadNotifications();
+        if (batch.isEmpty()) return;
+        List<Notification> notifications = batch.getNotifications();
+        String creationTimes = Notification.joinCreationTimes(notifications);
+        ByteBuffer buffer = Communication.encode(Commands.NEW_NOTIFICATIONS, Notification.joinDocuments(notifications), creationTimes);
+        registration.inFlight = true;
+        enqueue(registration, new Frame(buffer, batch, creationTimes));
+    }
+
+    /**
+     * Queues an outbound frame, which will be answered by a result.
+     *
+     * @param registration  session registration
+     * @param frame outbound frame
+     */
+    private void enqueue(Registration registration, Frame frame) {
+        registration.outbound.add(frame);
+        registration.pendingResults++;
+        updateInterest(registration);
+    }
+
+    /**
+     * Updates the interest set of the registration's key: it always reads and it writes only
+     * when there are outbound frames.
+     *
+     * @param registration  session registration
+     */
+    private void updateInterest(Registration registration) {
+        if (registration.key == null || !registration.key.isValid()) return;
+        registration.key.interestOps(SelectionKey.OP_READ | (registration.outbound.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+    }
+
+    /**
+     * Closes the registration's connection. The batches which have not been sent yet are restored into
+     * the {@code User}, before its listener is removed, and counted as delivery failures.
+     *
+     * @param registration  session registration
+     */
+    private void close(Registration registration) {
+        registration.closing = true;
+        registration.inFlight = false;
+        Frame frame;
+        while ((frame = registration.outbound.poll()) != null)
+            if (frame.batch != null) {
+                frame.batch.restore();
+                NotificationMetrics.recordFailures(frame.batch.getNotifications().size());
+            }
+        registration.user.removeNotificationListener(registration.listener);
+        if (registration.key != null) registration.key.cancel();
+        if (registration.channel != null)
+            try {
+                registration.channel.close();
+            } catch (IOException ignore) {
+            }
+    }
+
+    /**
+     * The {@code Registration} class represents a session registered to the {@code NotificationDispatcher}
+     * and its reverse connection.
+     * <p>
+     * Except for the listener, its state is only accessed by the dispatcher thread.
+     *
+     * @author Federico Gerardi
+     * @author https://azraelsec.github.io/
+     */
+    public class Registration {
+        private final User user;
+        private final InetSocketAddress address;
+        private final Runnable listener;
+        private final AtomicBoolean signaled;
+        private final Queue<Frame> outbound;
+        private final ByteBuffer resultHeader;
+        private int resultRemaining;
+        private int pendingResults;
+        private boolean inFlight;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private volatile boolean closing;
+
+        /**
+         * Initializes the {@code Registration}.
+         *
+         * @param user  session user
+         * @param address   client notification address
+         */
+        private Registration(User user, InetSocketAddress address) {
+            this.user = user;
+            this.address = address;
+            listener = () -> signal(this);
+            signaled = new AtomicBoolean(false);
+            outbound = new ArrayDeque<>();
+            resultHeader = ByteBuffer.allocate(2 * Integer.BYTES);
+            resultRemaining = 0;
+            pendingResults = 0;
+            inFlight = false;
+            channel = null;
+            key = null;
+            closing = false;
+        }
+    }
+
+    /**
+     * The {@code Frame} class represents an outbound command together with the notifications batch it
+     * carries.
+     *
+     * @author Federico Gerardi
+     * @author https://azraelsec.github.io/
+     */
+    private static class Frame {
+        private final ByteBuffer buffer;
+        private final NotificationBatch batch;
+        private final String creationTimes;
+
+        /**
+         * Initializes the {@code Frame}.
+         *
+         * @param buffer    encoded command
+         * @param batch   notifications batch carried (null if there is none)
+         * @param creationTimes comma separated creation timestamps (null if no notification is carried)
+         */
+        private Frame(ByteBuffer buffer, NotificationBatch batch, String creationTimes) {
+            this.buffer = buffer;
+            this.batch = batch;
+            this.creationTimes = creationTimes;
+        }
+    }
+}
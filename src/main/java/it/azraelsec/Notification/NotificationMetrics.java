@@ -0,0 +1,55 @@
+package it.azraelsec.Notification;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The {@code NotificationMetrics} class collects the server-side delivery metrics of the
+ * notifications: the latency between their creation and the moment they are sent, and the number
+ * of failed deliveries.
+ *
+ * @author Federico Gerardi
+ * @author https://azraelsec.github.io/
+ */
+public final class NotificationMetrics {
+    private static final LatencyHistogram sendLatency = new LatencyHistogram();
+    private static final AtomicLong deliveryFailures = new AtomicLong();
+
+    private NotificationMetrics() {
+    }
+
+    /**
+     * Records the sending of a notifications batch.
+     *
+     * @param creationTimes comma separated creation timestamps of the batch
+     */
+    public static void recordSent(String creationTimes) {
+        Notification.recordLatencies(creationTimes, sendLatency);
+    }
+
+    /**
+     * Records the failed delivery of some notifications, which have been put back to be sent later on.
+     *
+     * @param notifications number of notifications not delivered
+     */
+    public static void recordFailures(long notifications) {
+        deliveryFailures.addAndGet(notifications);
+    }
+
+    /**
+     * Gets the number of notifications whose delivery failed.
+     *
+     * @return  delivery failures counter
+     */
+    public static long getDeliveryFailures() {
+        return deliveryFailures.get();
+    }
+
+    /**
+     * Gets a printable summary of the metrics.
+     *
+     * @return  the metrics summary
+     */
+    public static String stats() {
+        return String.format("notification send latency: %s\nnotification delivery failures: %d", sendLatency, getDeliveryFailures());
+    }
+}
@@ -20,7 +20,12 @@ public enum Commands {
     SUCCESS,
     FAILURE,
     NEW_NOTIFICATIONS,
-    EXIT;
+    EXIT,
+    REGISTER,
+    STATS,
+    CHAT_HISTORY,
+    CHAT_SEND,
+    CHAT_MESSAGE;
 
     /**
      * Gets the integer corresponding to the instance {@code Commands} kind.
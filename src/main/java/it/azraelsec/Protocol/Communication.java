@@ -1,6 +1,7 @@
 package it.azraelsec.Protocol;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -20,6 +21,13 @@ import java.util.Map;
  * direct representation. When a {@code String} data is sent, before is stored an {@code Integer}
  * representing its size. This way, the receive can deduce how many bytes it needs to load from the
  * input buffer to reconstruct the original {@code String} information.
+ * <p>
+ * The {@code Server} can also push unsolicited commands (like {@code NEW_NOTIFICATIONS} or the relayed
+ * {@code CHAT_MESSAGE}s) on the same connection: they are never interleaved with a result, so the
+ * requester just needs to handle them before the result it is waiting for. Pushed commands are not acknowledged.
+ * <p>
+ * Every command that needs an authenticated {@code User} carries the session token given back by
+ * {@code LOGIN} as its first argument, so that the {@code Server} authenticates each request on its own.
  *
  * @author Federico Gerardi
  * @author https://azraelsec.github.io/
@@ -29,18 +37,23 @@ public class Communication {
     private static Map<Commands, Class<?>[]> commandsArgsType = new HashMap<>();
     static {
         commandsArgsType.put(Commands.LOGIN, new Class<?>[] {String.class, String.class, Integer.class});
-        commandsArgsType.put(Commands.LOGOUT, new Class<?>[] {});
+        commandsArgsType.put(Commands.LOGOUT, new Class<?>[] {String.class});
         commandsArgsType.put(Commands.FAILURE, new Class<?>[] {String.class});
         commandsArgsType.put(Commands.SUCCESS, new Class<?>[] {String.class});
-        commandsArgsType.put(Commands.EDIT, new Class<?>[] {String.class, Integer.class});
-        commandsArgsType.put(Commands.EDIT_END, new Class<?>[] {});
-        commandsArgsType.put(Commands.CREATE, new Class<?>[] {String.class, Integer.class});
-        commandsArgsType.put(Commands.SHOW_SECTION, new Class<?>[] {String.class, Integer.class});
-        commandsArgsType.put(Commands.SHOW_DOCUMENT, new Class<?>[] {String.class});
-        commandsArgsType.put(Commands.LIST, new Class<?>[] {});
-        commandsArgsType.put(Commands.SHARE, new Class<?>[] {String.class, String.class});
-        commandsArgsType.put(Commands.NEW_NOTIFICATIONS, new Class<?>[] {String.class});
+        commandsArgsType.put(Commands.EDIT, new Class<?>[] {String.class, String.class, Integer.class});
+        commandsArgsType.put(Commands.EDIT_END, new Class<?>[] {String.class});
+        commandsArgsType.put(Commands.CREATE, new Class<?>[] {String.class, String.class, Integer.class});
+        commandsArgsType.put(Commands.SHOW_SECTION, new Class<?>[] {String.class, String.class, Integer.class});
+        commandsArgsType.put(Commands.SHOW_DOCUMENT, new Class<?>[] {String.class, String.class});
+        commandsArgsType.put(Commands.LIST, new Class<?>[] {String.class});
+        commandsArgsType.put(Commands.SHARE, new Class<?>[] {String.class, String.class, String.class});
+        commandsArgsType.put(Commands.NEW_NOTIFICATIONS, new Class<?>[] {String.class, String.class});
         commandsArgsType.put(Commands.EXIT, new Class<?>[] {});
+        commandsArgsType.put(Commands.REGISTER, new Class<?>[] {String.class, String.class});
+        commandsArgsType.put(Commands.STATS, new Class<?>[] {String.class});
+        commandsArgsType.put(Commands.CHAT_HISTORY, new Class<?>[] {String.class, String.class, String.class, String.class});
+        commandsArgsType.put(Commands.CHAT_SEND, new Class<?>[] {String.class, String.class});
+        commandsArgsType.put(Commands.CHAT_MESSAGE, new Class<?>[] {String.class, String.class, String.class});
     }
 
     /**
@@ -59,7 +72,24 @@ public class Communication {
      * @param args  command arguments
      */
     public static void sendAndReceiveStream(DataOutputStream outputStream, DataInputStream inputStream, Handler onSuccess, OutputStream stream, Handler onFailure, Commands command, Object...args) {
-        send(outputStream, inputStream, (str) -> {
+        sendAndReceiveStream(outputStream, inputStream, null, onSuccess, stream, onFailure, command, args);
+    }
+
+    /**
+     * It sends a {@code Commands} and waits for a resulting data stream, handling the pushed commands
+     * which precede the result.
+     *
+     * @param outputStream  requester output stream
+     * @param inputStream   requester input stream
+     * @param pushHandlers  (pushed commands, handler) map
+     * @param onSuccess {@code Commands#SUCCESS} handler
+     * @param stream    output stream
+     * @param onFailure {@code Commands#FAILURE} handler
+     * @param command   {@code Commands} to execute
+     * @param args  command arguments
+     */
+    public static void sendAndReceiveStream(DataOutputStream outputStream, DataInputStream inputStream, Map<Commands, Execution> pushHandlers, Handler onSuccess, OutputStream stream, Handler onFailure, Commands command, Object...args) {
+        send(outputStream, inputStream, pushHandlers, (str) -> {
             try {
                 readFileFromSocket(inputStream, stream);
                 onSuccess.handle(str);
@@ -99,28 +129,35 @@ public class Communication {
      * @param args  command arguments
      */
     public static void send(DataOutputStream outputStream, DataInputStream inputStream, Handler onSuccess, Handler onFailure, Commands command, Object...args) {
+        send(outputStream, inputStream, null, onSuccess, onFailure, command, args);
+    }
+
+    /**
+     * Requests a {@code Commands} execution and waits to receive its result back, handling the pushed
+     * commands which precede it.
+     *
+     * @param outputStream  requester output stream
+     * @param inputStream   requester input stream
+     * @param pushHandlers  (pushed commands, handler) map
+     * @param onSuccess {@code Commands#SUCCESS} handler
+     * @param onFailure {{@code Commands#FAILURE} handler}
+     * @param command   {@code Commands} to execute
+     * @param args  command arguments
+     */
+    public static void send(DataOutputStream outputStream, DataInputStream inputStream, Map<Commands, Execution> pushHandlers, Handler onSuccess, Handler onFailure, Commands command, Object...args) {
         try {
-            Class<?>[] argsType = commandsArgsType.get(command);
-            if(argsType.length != args.length) throw new IllegalArgumentException("Wrong arguments number: " + argsType.length);
-            for(int i = 0; i < argsType.length; i++)
-                if(!argsType[i].isAssignableFrom(args[i].getClass()))
-                    throw new IllegalArgumentException("Parameter number " + i + " should have been of type " + argsType[i].getSimpleName());
-            outputStream.writeInt(command.getCode());
-            for(Object arg : args) {
-                if(arg instanceof Integer)
-                    outputStream.writeInt((Integer)arg);
-                else if(arg instanceof String) {
-                    byte[] bytes = ((String) arg).getBytes();
-                    outputStream.writeInt(bytes.length);
-                    outputStream.write(bytes);
-                }
-            }
+            writeCommand(outputStream, command, args);
             outputStream.flush();
 
             Map<Commands, Execution> rets = new HashMap<>();
+            if( pushHandlers != null ) rets.putAll(pushHandlers);
             rets.put(Commands.SUCCESS, new ExecutionImpl(onSuccess));
             rets.put(Commands.FAILURE, new ExecutionImpl(onFailure));
-            if( inputStream != null ) receive(inputStream, null, rets);
+            if( inputStream != null ) {
+                Commands received;
+                do received = receive(inputStream, null, rets);
+                while( pushHandlers != null && received != null && pushHandlers.containsKey(received) );
+            }
         }
         catch (Exception ex) {
             if(onFailure != null) onFailure.handle(ex.getMessage());
@@ -128,6 +165,69 @@ public class Communication {
         }
     }
 
+    /**
+     * Handles all the pushed commands already available on the input stream, without blocking if
+     * there is none.
+     *
+     * @param inputStream   requester input stream
+     * @param pushHandlers  (pushed commands, handler) map
+     * @throws IOException  if an I/O error occurs
+     */
+    public static void receivePushed(DataInputStream inputStream, Map<Commands, Execution> pushHandlers) throws IOException {
+        Map<Commands, Execution> rets = new HashMap<>(pushHandlers);
+        rets.putIfAbsent(Commands.FAILURE, new ExecutionImpl(null));
+        while( inputStream.available() > 0 )
+            if( receive(inputStream, null, rets) == null ) break;
+    }
+
+    /**
+     * Encodes a {@code Commands} and its arguments into a {@code ByteBuffer}, using the same format
+     * {@code send} writes on the stream.
+     * <p>
+     * It is useful to who writes on non-blocking channels and cannot use a {@code DataOutputStream}.
+     *
+     * @param command   {@code Commands} to encode
+     * @param args  command arguments
+     * @return  the buffer ready to be written
+     * @throws IllegalArgumentException if the arguments do not match the command ones
+     */
+    public static ByteBuffer encode(Commands command, Object...args) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            writeCommand(new DataOutputStream(bytes), command, args);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    /**
+     * Checks the arguments' kind and number and writes the {@code Commands} with its arguments on the
+     * output stream.
+     *
+     * @param outputStream  output stream
+     * @param command   {@code Commands} to write
+     * @param args  command arguments
+     * @throws IOException  if an I/O error occurs
+     */
+    private static void writeCommand(DataOutputStream outputStream, Commands command, Object...args) throws IOException {
+        Class<?>[] argsType = commandsArgsType.get(command);
+        if(argsType.length != args.length) throw new IllegalArgumentException("Wrong arguments number: " + argsType.length);
+        for(int i = 0; i < argsType.length; i++)
+            if(!argsType[i].isAssignableFrom(args[i].getClass()))
+                throw new IllegalArgumentException("Parameter number " + i + " should have been of type " + argsType[i].getSimpleName());
+        outputStream.writeInt(command.getCode());
+        for(Object arg : args) {
+            if(arg instanceof Integer)
+                outputStream.writeInt((Integer)arg);
+            else if(arg instanceof String) {
+                byte[] bytes = ((String) arg).getBytes();
+                outputStream.writeInt(bytes.length);
+                outputStream.write(bytes);
+            }
+        }
+    }
+
     /**
      * Receives a {@code Commands} requests, handles it using the dispatcher pointed out as argument and sends the result
      * back through a {@code Commands} instance.
@@ -135,8 +235,9 @@ public class Communication {
      * @param inputStream   requester input stream
      * @param outputStream  requester output stream
      * @param dispatcher    (commands, handler) map
+     * @return  the received {@code Commands} or null if it cannot be read
      */
-    public static void receive(DataInputStream inputStream, DataOutputStream outputStream, Map<Commands, Execution> dispatcher) {
+    public static Commands receive(DataInputStream inputStream, DataOutputStream outputStream, Map<Commands, Execution> dispatcher) {
         try {
             int code = inputStream.readInt();
             Commands command = Commands.getCommand(code);
@@ -147,18 +248,20 @@ public class Communication {
                 else if(argsType[i] == String.class) {
                     int length = inputStream.readInt();
                     byte[] buffer = new byte[length];
-                    inputStream.read(buffer);
+                    inputStream.readFully(buffer);
                     args[i] = new String(buffer);
                 }
             }
             dispatcher.get(command).run(args, (state, result) -> {
                 if(outputStream != null) send(outputStream, null, null, null,state, result);
             });
+            return command;
         }
         catch (Exception ex) {
             dispatcher.get(Commands.FAILURE).run(new Object[]{ex.getMessage()}, null);
             if(outputStream == null) ex.printStackTrace();
             else send(outputStream, null, null, null, Commands.FAILURE, ex.getMessage());
+            return null;
         }
     }
 
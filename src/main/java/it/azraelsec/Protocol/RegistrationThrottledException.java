@@ -0,0 +1,37 @@
+package it.azraelsec.Protocol;
+
+import java.rmi.RemoteException;
+
+/**
+ * The {@code RegistrationThrottledException} class is thrown by the {@code RemoteRegistration} methods when
+ * the registration attempt has been throttled, telling the client when it can retry.
+ * <p>
+ * Since it is thrown by the remote object, the client receives it as the cause of a
+ * {@code java.rmi.ServerException}.
+ *
+ * @author Federico Gerardi
+ * @author https://azraelsec.github.io/
+ */
+public class RegistrationThrottledException extends RemoteException {
+    private static final long serialVersionUID = 1L;
+    private final long retryAfter;
+
+    /**
+     * Initializes the {@code RegistrationThrottledException}.
+     *
+     * @param retryAfter    time to wait before the next attempt (in milliseconds)
+     */
+    public RegistrationThrottledException(long retryAfter) {
+        super("Too many attempts: retry after " + ((retryAfter + 999) / 1000) + " seconds");
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Gets the time to wait before the next attempt.
+     *
+     * @return  waiting time (in milliseconds)
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+}
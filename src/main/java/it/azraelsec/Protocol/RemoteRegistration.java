@@ -20,7 +20,21 @@ public interface RemoteRegistration extends Remote {
      * @param username  user's username
      * @param password  user's password
      * @return  true if new user has been created, false otherwise
+     * @throws RegistrationThrottledException   if the attempt has been throttled
      * @throws RemoteException  if an RMI communication error occurs
      */
     boolean register(String username, String password) throws RemoteException;
+
+    /**
+     * Execute the remote RMI method for registering a batch of new users in a single round trip.
+     * <p>
+     * Each entry is handled independently: the result array says which ones have been created.
+     *
+     * @param usernames users' usernames
+     * @param passwords users' passwords, in the same order
+     * @return  for each entry, true if the new user has been created, false otherwise
+     * @throws RegistrationThrottledException   if the attempt has been throttled
+     * @throws RemoteException  if an RMI communication error occurs
+     */
+    boolean[] registerAll(String[] usernames, String[] passwords) throws RemoteException;
 }
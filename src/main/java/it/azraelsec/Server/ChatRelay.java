@@ -0,0 +1,277 @@
+package it.azraelsec.Server;
+
+import it.azraelsec.Protocol.Commands;
+import it.azraelsec.Protocol.Communication;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The {@code ChatRelay} class carries the chat of the {@code Document}s through the command connections,
+ * for the networks in which multicast is not available.
+ * <p>
+ * Every editor of a {@code Document} joins its room with an {@code Outbox}. A published message is encoded
+ * into a single {@code Commands#CHAT_MESSAGE} frame, and the very same bytes are queued into the
+ * {@code Outbox} of every editor of the room, the sender included. The frames are queued while holding the
+ * room, so every editor receives the messages in the same order.
+ * <p>
+ * An {@code Outbox} is bounded: when it is full its oldest frame is dropped and counted. As soon as it gets
+ * a frame, its writing routine is scheduled on the writers pool, unless it is already scheduled: the routine
+ * drains all the queued frames into a single buffer, which is written to the connection in one go, and the
+ * frames queued while writing are batched into the next one. The {@code Outbox} stays scheduled until the
+ * routine finds it empty, so the frames queued while the writers are busy pile up into larger batches instead
+ * of new tasks, and a connection which is busy with a command is written by its handler later on.
+ * <p>
+ * The writers are few, so a connection which is not read would hold one of them up: a watchdog checks the
+ * {@code Outbox}es every second and closes the connections whose write has been blocked for longer than
+ * the timeout.
+ *
+ * @author Federico Gerardi
+ * @author https://azraelsec.github.io/
+ */
+final class ChatRelay {
+    static final int MAX_MESSAGE_LENGTH = 16 * 1024;
+    private static final int MAX_BATCH_SIZE = 64 * 1024;
+    private static final long WATCHDOG_INTERVAL = 1000;
+    private final int outboxCapacity;
+    private final long writeTimeout;
+    private final Map<String, List<Outbox>> rooms;
+    private final ExecutorService writers;
+    private final ScheduledExecutorService watchdog;
+    private final AtomicLong published;
+    private final AtomicLong queued;
+    private final AtomicLong written;
+    private final AtomicLong writes;
+    private final AtomicLong dropped;
+    private final AtomicLong stalled;
+
+    /**
+     * Initializes the {@code ChatRelay}.
+     *
+     * @param outboxCapacity    maximum number of frames waiting to be written to a connection
+     * @param writersNumber number of threads writing the frames
+     * @param writeTimeout  time a write can be blocked for before its connection is closed (in milliseconds)
+     */
+    ChatRelay(int outboxCapacity, int writersNumber, long writeTimeout) {
+        this.outboxCapacity = Math.max(1, outboxCapacity);
+        this.writeTimeout = writeTimeout;
+        rooms = new ConcurrentHashMap<>();
+        writers = Executors.newFixedThreadPool(Math.max(1, writersNumber), runnable -> {
+            Thread thread = new Thread(runnable, "ChatRelayWriter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ChatRelayWatchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watchdog.scheduleWithFixedDelay(this::closeStalled, WATCHDOG_INTERVAL, WATCHDOG_INTERVAL, TimeUnit.MILLISECONDS);
+        published = new AtomicLong();
+        queued = new AtomicLong();
+        written = new AtomicLong();
+        writes = new AtomicLong();
+        dropped = new AtomicLong();
+        stalled = new AtomicLong();
+    }
+
+    /**
+     * Creates the {@code Outbox} of a connection.
+     *
+     * @param writer    the routine which writes the queued frames to the connection
+     * @param closer    the routine which closes the connection
+     * @return  the new {@code Outbox}
+     */
+    Outbox createOutbox(Runnable writer, Runnable closer) {
+        return new Outbox(writer, closer);
+    }
+
+    /**
+     * Makes the {@code Outbox} receive the chat of a {@code Document}.
+     *
+     * @param document  document name
+     * @param outbox    editor's outbox
+     */
+    void join(String document, Outbox outbox) {
+        rooms.compute(document, (name, room) -> {
+            List<Outbox> members = room == null ? new ArrayList<>() : new ArrayList<>(room);
+            members.add(outbox);
+            return members;
+        });
+    }
+
+    /**
+     * Stops the {@code Outbox} from receiving the chat of a {@code Document}, discarding its frames
+     * not yet written. The room is removed as soon as it is empty.
+     *
+     * @param document  document name
+     * @param outbox    editor's outbox
+     */
+    void leave(String document, Outbox outbox) {
+        rooms.computeIfPresent(document, (name, room) -> {
+            List<Outbox> members = new ArrayList<>(room);
+            members.remove(outbox);
+            return members.isEmpty() ? null : members;
+        });
+        outbox.clear();
+    }
+
+    /**
+     * Relays a message to all the editors of a {@code Document}.
+     *
+     * @param document  document name
+     * @param sender    sender username
+     * @param text  message text
+     * @return  the number of editors the message has been queued for
+     */
+    int publish(String document, String sender, String text) {
+        byte[] frame = Communication.encode(Commands.CHAT_MESSAGE, sender, text, Long.toString(System.currentTimeMillis())).array();
+        int[] recipients = {0};
+        rooms.computeIfPresent(document, (name, room) -> {
+            for (Outbox outbox : room)
+                outbox.offer(frame);
+            recipients[0] = room.size();
+            return room;
+        });
+        published.incrementAndGet();
+        queued.addAndGet(recipients[0]);
+        return recipients[0];
+    }
+
+    /**
+     * Closes the connections whose write has been blocked for longer than the timeout. It is run by
+     * the watchdog.
+     */
+    private void closeStalled() {
+        long now = System.currentTimeMillis();
+        for (List<Outbox> room : rooms.values())
+            for (Outbox outbox : room) {
+                long since = outbox.writingSince;
+                if (since > 0 && now - since > writeTimeout) {
+                    outbox.writingSince = 0;
+                    stalled.incrementAndGet();
+                    outbox.closer.run();
+                }
+            }
+    }
+
+    /**
+     * Gets a printable summary of the relay counters.
+     *
+     * @return  the counters summary
+     */
+    String stats() {
+        int editors = 0;
+        for (List<Outbox> room : rooms.values())
+            editors += room.size();
+        return String.format("chat relay: %d rooms, %d editors, %d messages published, %d frames queued, %d frames written in %d writes, %d dropped, %d stalled connections closed",
+                rooms.size(), editors, published.get(), queued.get(), written.get(), writes.get(), dropped.get(), stalled.get());
+    }
+
+    /**
+     * The {@code Outbox} class queues the frames to be written to a connection.
+     *
+     * @author Federico Gerardi
+     * @author https://azraelsec.github.io/
+     */
+    final class Outbox {
+        private final Queue<byte[]> frames;
+        private final AtomicInteger size;
+        private final AtomicBoolean scheduled;
+        private final Runnable writer;
+        private final Runnable closer;
+        private volatile long writingSince;
+
+        /**
+         * Initializes an empty {@code Outbox}.
+         *
+         * @param writer    the routine which writes the queued frames to the connection
+         * @param closer    the routine which closes the connection
+         */
+        private Outbox(Runnable writer, Runnable closer) {
+            frames = new ConcurrentLinkedQueue<>();
+            size = new AtomicInteger();
+            scheduled = new AtomicBoolean();
+            this.writer = writer;
+            this.closer = closer;
+            writingSince = 0;
+        }
+
+        /**
+         * Queues a frame, dropping the oldest one if the outbox is full, and schedules the writing task.
+         *
+         * @param frame encoded frame
+         */
+        private void offer(byte[] frame) {
+            frames.add(frame);
+            if (size.incrementAndGet() > outboxCapacity && frames.poll() != null) {
+                size.decrementAndGet();
+                dropped.incrementAndGet();
+            }
+            if (scheduled.compareAndSet(false, true))
+                writers.execute(writer);
+        }
+
+        /**
+         * Removes the queued frames and joins them into a single buffer, until it reaches
+         * {@code MAX_BATCH_SIZE} bytes. It is called by the writing routine, which is considered to be
+         * writing the batch until it drains the {@code Outbox} again.
+         *
+         * @return  the frames batch or null if there is none
+         */
+        byte[] drain() {
+            List<byte[]> batch = new ArrayList<>();
+            int length = 0;
+            byte[] frame;
+            while (length < MAX_BATCH_SIZE && (frame = frames.poll()) != null) {
+                size.decrementAndGet();
+                batch.add(frame);
+                length += frame.length;
+            }
+            if (batch.isEmpty()) {
+                writingSince = 0;
+                return null;
+            }
+            byte[] buffer = new byte[length];
+            int offset = 0;
+            for (byte[] part : batch) {
+                System.arraycopy(part, 0, buffer, offset, part.length);
+                offset += part.length;
+            }
+            written.addAndGet(batch.size());
+            writes.incrementAndGet();
+            writingSince = System.currentTimeMillis();
+            return buffer;
+        }
+
+        /**
+         * Marks the {@code Outbox} as not scheduled anymore, once it has been drained. It is called by the
+         * writing routine, which has to go on draining if some frames have been queued in the meantime.
+         *
+         * @return  true if the {@code Outbox} has got new frames and has been scheduled again, false otherwise
+         */
+        boolean finish() {
+            scheduled.set(false);
+            return !frames.isEmpty() && scheduled.compareAndSet(false, true);
+        }
+
+        /**
+         * Discards the queued frames.
+         */
+        void clear() {
+            while (frames.poll() != null)
+                size.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package it.azraelsec.Server;
+
+/**
+ * The {@code Hex} class encodes and decodes the bytes to and from their hex representation.
+ *
+ * @author Federico Gerardi
+ * @author https://azraelsec.github.io/
+ */
+final class Hex {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private Hex() {
+    }
+
+    /**
+     * Gets the hex representation of the bytes.
+     *
+     * @param bytes input bytes
+     * @return  the hex string
+     */
+    static String encode(byte[] bytes) {
+        char[] output = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            output[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            output[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new String(output);
+    }
+
+    /**
+     * Decodes a hex string.
+     *
+     * @param hex   hex string
+     * @return  the decoded bytes or null if {@code hex} is not a valid hex string
+     */
+    static byte[] decode(String hex) {
+        if (hex == null || hex.length() % 2 != 0) return null;
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) return null;
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,182 @@
+package it.azraelsec.Server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The {@code LoginThrottler} class limits the login and registration attempts, so that a brute-force
+ * attempt or a misconfigured script cannot eat all the CPU needed to verify the credentials.
+ * <p>
+ * It keeps a token bucket for each source address and one for each username: an attempt is allowed
+ * only if both the buckets have got a token left. The buckets are stored into two bounded LRU maps,
+ * so the least recently used ones are evicted when too many addresses or usernames are tracked.
+ *
+ * @author Federico Gerardi
+ * @author https://azraelsec.github.io/
+ */
+class LoginThrottler {
+    private final Map<String, TokenBucket> addressBuckets;
+    private final Map<String, TokenBucket> usernameBuckets;
+    private final int capacity;
+    private final double refillPerMillis;
+    private final AtomicLong allowedAttempts;
+    private final AtomicLong throttledByAddress;
+    private final AtomicLong throttledByUsername;
+
+    /**
+     * Initializes the {@code LoginThrottler}.
+     *
+     * @param capacity  maximum number of consecutive attempts (bucket size)
+     * @param refillPerMinute   number of attempts regained every minute
+     * @param maxTrackedKeys    maximum number of buckets stored for each map
+     */
+    LoginThrottler(int capacity, int refillPerMinute, int maxTrackedKeys) {
+        this.capacity = Math.max(1, capacity);
+        refillPerMillis = Math.max(1, refillPerMinute) / 60000.0;
+        addressBuckets = newBoundedMap(maxTrackedKeys);
+        usernameBuckets = newBoundedMap(maxTrackedKeys);
+        allowedAttempts = new AtomicLong();
+        throttledByAddress = new AtomicLong();
+        throttledByUsername = new AtomicLong();
+    }
+
+    /**
+     * Tries to consume a token from both the address and the username buckets.
+     *
+     * @param address   source address
+     * @param username  target username (or null to check the address only)
+     * @return  0 if the attempt is allowed, the milliseconds to wait before retrying otherwise
+     */
+    long tryAcquire(String address, String username) {
+        long now = System.currentTimeMillis();
+        TokenBucket addressBucket = getBucket(addressBuckets, address);
+        TokenBucket usernameBucket = username != null ? getBucket(usernameBuckets, username) : null;
+        synchronized (addressBucket) {
+            long retryAfter = addressBucket.retryAfter(now);
+            if (retryAfter > 0) {
+                throttledByAddress.incrementAndGet();
+                return retryAfter;
+            }
+            if (usernameBucket != null) {
+                synchronized (usernameBucket) {
+                    retryAfter = usernameBucket.retryAfter(now);
+                    if (retryAfter > 0) {
+                        throttledByUsername.incrementAndGet();
+                        return retryAfter;
+                    }
+                    usernameBucket.consume();
+                }
+            }
+            addressBucket.consume();
+        }
+        allowedAttempts.incrementAndGet();
+        return 0;
+    }
+
+    /**
+     * Gets the number of allowed attempts.
+     *
+     * @return  allowed attempts counter
+     */
+    long getAllowedAttempts() {
+        return allowedAttempts.get();
+    }
+
+    /**
+     * Gets the number of attempts throttled because of their source address.
+     *
+     * @return  throttled attempts counter
+     */
+    long getThrottledByAddress() {
+        return throttledByAddress.get();
+    }
+
+    /**
+     * Gets the number of attempts throttled because of their target username.
+     *
+     * @return  throttled attempts counter
+     */
+    long getThrottledByUsername() {
+        return throttledByUsername.get();
+    }
+
+    /**
+     * Gets a printable summary of the counters.
+     *
+     * @return  the counters summary
+     */
+    @Override
+    public String toString() {
+        return String.format("login attempts: %d allowed, %d throttled by address, %d throttled by username",
+                getAllowedAttempts(), getThrottledByAddress(), getThrottledByUsername());
+    }
+
+    /**
+     * Gets the bucket related to the key, creating it if it does not exist.
+     *
+     * @param buckets   buckets map
+     * @param key   address or username
+     * @return  the related bucket
+     */
+    private TokenBucket getBucket(Map<String, TokenBucket> buckets, String key) {
+        synchronized (buckets) {
+            return buckets.computeIfAbsent(key == null ? "" : key, ignore -> new TokenBucket());
+        }
+    }
+
+    /**
+     * Creates a LRU map which evicts its eldest entry when it grows over the maximum size.
+     *
+     * @param maxSize   maximum number of entries
+     * @return  the bounded map
+     */
+    private static Map<String, TokenBucket> newBoundedMap(int maxSize) {
+        return new LinkedHashMap<String, TokenBucket>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, TokenBucket> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * The {@code TokenBucket} class represents a single token bucket, lazily refilled every time it
+     * is checked.
+     *
+     * @author Federico Gerardi
+     * @author https://azraelsec.github.io/
+     */
+    private class TokenBucket {
+        private double tokens;
+        private long lastRefill;
+
+        /**
+         * Initializes a full {@code TokenBucket}.
+         */
+        TokenBucket() {
+            tokens = capacity;
+            lastRefill = System.currentTimeMillis();
+        }
+
+        /**
+         * Refills the bucket and computes how long it is needed to wait for a token.
+         *
+         * @param now   actual timestamp
+         * @return  0 if a token is available, the milliseconds to wait otherwise
+         */
+        long retryAfter(long now) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * refillPerMillis);
+            lastRefill = now;
+            if (tokens >= 1) return 0;
+            return (long) Math.ceil((1 - tokens) / refillPerMillis);
+        }
+
+        /**
+         * Consumes a token.
+         */
+        void consume() {
+            tokens -= 1;
+        }
+    }
+}
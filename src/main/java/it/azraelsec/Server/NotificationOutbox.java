@@ -0,0 +1,306 @@
+package it.azraelsec.Server;
+
+import it.azraelsec.Notification.Notification;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The {@code NotificationOutbox} class stores on disk the notifications of the offline {@code User}s,
+ * so that a large backlog costs no memory and survives a restart.
+ * <p>
+ * Each user has got an append-only log, where every notification is a record made up by its creation
+ * timestamp and its text written through {@code writeUTF}, and a compact index which only holds the offset of the first record not yet
+ * delivered. At login the unread tail is read in batches, and every batch is acknowledged by moving the
+ * offset forward only once it has been sent: a batch whose delivery fails is still in the log and it is
+ * read again. When the whole log has been delivered both the files are deleted, while a log which is
+ * mostly delivered is compacted by rewriting its tail.
+ * <p>
+ * The file names are the hex encoding of the usernames. The callers need to serialize the accesses
+ * related to the same user (see {@code User}).
+ *
+ * @author Federico Gerardi
+ * @author https://azraelsec.github.io/
+ */
+final class NotificationOutbox {
+    private static final String LOG_EXTENSION = ".log";
+    private static final String INDEX_EXTENSION = ".idx";
+    private static final long COMPACTION_THRESHOLD = 64 * 1024;
+    private static volatile File directory = null;
+
+    private NotificationOutbox() {
+    }
+
+    /**
+     * Configures the outbox directory, creating it if it does not exist.
+     *
+     * @param outboxDirectory   directory path (if null the outbox is disabled)
+     */
+    static void configure(String outboxDirectory) {
+        if (outboxDirectory == null) {
+            directory = null;
+            return;
+        }
+        File dir = new File(outboxDirectory);
+        if (!dir.isDirectory()) dir.mkdirs();
+        directory = dir.isDirectory() ? dir : null;
+    }
+
+    /**
+     * Checks if the outbox has been configured.
+     *
+     * @return  true if the notifications can be stored on disk, false otherwise
+     */
+    static boolean isEnabled() {
+        return directory != null;
+    }
+
+    /**
+     * Appends a notification to the user's log.
+     *
+     * @param username  target username
+     * @param notification  notification to store
+     * @param creationTime  notification creation timestamp (in milliseconds)
+     * @return  true if the notification has been stored, false if the outbox is disabled or failed
+     */
+    static boolean append(String username, String notification, long creationTime) {
+        File dir = directory;
+        if (dir == null) return false;
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(getLog(dir, username), true))) {
+            output.writeLong(creationTime);
+            output.writeUTF(notification);
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads a batch of undelivered notifications, without acknowledging them. The duplicates within the
+     * batch are coalesced.
+     * <p>
+     * A record cut off at the end of the log (a write interrupted by a crash) is treated as the end of
+     * the log: it is removed, so that the records appended later can be read again.
+     *
+     * @param username  target username
+     * @param offset    offset of the first record to read (less than 0 to start from the first one not delivered)
+     * @param batchSize maximum number of notifications to read
+     * @return  the notifications batch, or null if there is none or the log cannot be read
+     */
+    static Batch readBatch(String username, long offset, int batchSize) {
+        Map<String, Long> notifications = new LinkedHashMap<>();
+        File dir = directory;
+        if (dir == null) return null;
+        File log = getLog(dir, username);
+        if (!log.exists()) return null;
+        if (offset < 0) offset = readOffset(getIndex(dir, username));
+        boolean endOfLog = false;
+        try (FileInputStream file = new FileInputStream(log)) {
+            file.getChannel().position(offset);
+            DataInputStream input = new DataInputStream(new BufferedInputStream(file));
+            for (int i = 0; i < batchSize; i++) {
+                long creationTime;
+                String notification;
+                try {
+                    creationTime = input.readLong();
+                    notification = input.readUTF();
+                } catch (EOFException ex) {
+                    endOfLog = true;
+                    break;
+                }
+                notifications.putIfAbsent(notification, creationTime);
+                offset += Long.BYTES + 2 + utfLength(notification);
+            }
+        } catch (IOException ex) {
+            return null;
+        }
+        if (endOfLog && offset < log.length()) {
+            try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+                file.setLength(offset);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+        if (notifications.isEmpty()) return null;
+        List<Notification> batch = new ArrayList<>(notifications.size());
+        notifications.forEach((notification, creationTime) -> batch.add(new Notification(notification, creationTime)));
+        return new Batch(batch, offset);
+    }
+
+    /**
+     * Acknowledges the notifications delivered up to the given offset, moving the delivered offset forward
+     * if it is behind. When nothing has been read past the offset, the log is deleted if it has been
+     * delivered as a whole or compacted if it is mostly delivered: in those cases the offsets of its
+     * records change.
+     *
+     * @param username  target username
+     * @param offset    end offset of the delivered records
+     * @param reclaim   true if no record past the offset has been read, false otherwise
+     * @return  true if the log has been deleted or compacted, false otherwise
+     */
+    static boolean acknowledge(String username, long offset, boolean reclaim) {
+        File dir = directory;
+        if (dir == null) return false;
+        File log = getLog(dir, username);
+        File index = getIndex(dir, username);
+        if (!log.exists() || offset <= readOffset(index)) return false;
+        long length = log.length();
+        try {
+            if (reclaim && offset >= length) {
+                Files.deleteIfExists(log.toPath());
+                Files.deleteIfExists(index.toPath());
+                return true;
+            } else if (reclaim && offset >= COMPACTION_THRESHOLD && offset >= length / 2) {
+                File compacted = new File(log.getPath() + ".tmp");
+                try (RandomAccessFile input = new RandomAccessFile(log, "r");
+                     BufferedOutputStream output = new BufferedOutputStream(new FileOutputStream(compacted))) {
+                    input.seek(offset);
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = input.read(buffer)) > 0)
+                        output.write(buffer, 0, read);
+                }
+                Files.move(compacted.toPath(), log.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                Files.deleteIfExists(index.toPath());
+                return true;
+            } else writeOffset(index, offset);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * Checks if the user has got undelivered notifications stored on disk.
+     *
+     * @param username  target username
+     * @return  true if there is any, false otherwise
+     */
+    static boolean hasPending(String username) {
+        File dir = directory;
+        return dir != null && getLog(dir, username).exists();
+    }
+
+    /**
+     * Reads the delivered offset from the index.
+     *
+     * @param index user's index
+     * @return  the delivered offset (0 if the index does not exist)
+     */
+    private static long readOffset(File index) {
+        if (!index.exists()) return 0;
+        try (DataInputStream input = new DataInputStream(new FileInputStream(index))) {
+            return input.readLong();
+        } catch (IOException ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * Writes the delivered offset into the index.
+     *
+     * @param index user's index
+     * @param offset    delivered offset
+     * @throws IOException  if an I/O error occurs
+     */
+    private static void writeOffset(File index, long offset) throws IOException {
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(index))) {
+            output.writeLong(offset);
+        }
+    }
+
+    /**
+     * Computes the number of bytes {@code writeUTF} uses to encode the string, length excluded.
+     *
+     * @param value string value
+     * @return  the encoded length
+     */
+    private static int utfLength(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) length++;
+            else if (c > 0x07FF) length += 3;
+            else length += 2;
+        }
+        return length;
+    }
+
+    /**
+     * Gets the user's log file.
+     *
+     * @param dir   outbox directory
+     * @param username  target username
+     * @return  the log file
+     */
+    private static File getLog(File dir, String username) {
+        return new File(dir, Hex.encode(username.getBytes(StandardCharsets.UTF_8)) + LOG_EXTENSION);
+    }
+
+    /**
+     * Gets the user's index file.
+     *
+     * @param dir   outbox directory
+     * @param username  target username
+     * @return  the index file
+     */
+    private static File getIndex(File dir, String username) {
+        return new File(dir, Hex.encode(username.getBytes(StandardCharsets.UTF_8)) + INDEX_EXTENSION);
+    }
+
+    /**
+     * The {@code Batch} class represents a batch of notifications read from a log, together with the
+     * offset which follows its last record.
+     *
+     * @author Federico Gerardi
+     * @author https://azraelsec.github.io/
+     */
+    static final class Batch {
+        private final List<Notification> notifications;
+        private final long end;
+
+        /**
+         * Initializes the {@code Batch}.
+         *
+         * @param notifications batch notifications
+         * @param end   offset which follows the last record
+         */
+        private Batch(List<Notification> notifications, long end) {
+            this.notifications = notifications;
+            this.end = end;
+        }
+
+        /**
+         * Gets the notifications of the batch.
+         *
+         * @return  notifications list
+         */
+        List<Notification> getNotifications() {
+            return notifications;
+        }
+
+        /**
+         * Gets the offset which follows the last record of the batch.
+         *
+         * @return  end offset
+         */
+        long getEnd() {
+            return end;
+        }
+    }
+}
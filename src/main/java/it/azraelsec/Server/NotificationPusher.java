@@ -0,0 +1,180 @@
+package it.azraelsec.Server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The {@code NotificationPusher} class writes the inline notifications on the command connections, so that
+ * the thread which notifies a {@code User} never writes to another connection.
+ * <p>
+ * Every connection which gets its notifications inline owns a {@code Channel}: the notification listener
+ * only schedules it, and its writing routine runs on the writers pool, unless it is already scheduled. The
+ * {@code Channel} stays scheduled until the routine finds nothing new to write, so the notifications
+ * queued in the meantime are written by the same task.
+ * <p>
+ * The writers are few, so a connection which is not read would hold one of them up: a watchdog checks the
+ * {@code Channel}s every second and closes the connections whose write has been blocked for longer than
+ * the timeout.
+ *
+ * @author Federico Gerardi
+ * @author https://azraelsec.github.io/
+ */
+final class NotificationPusher {
+    private static final long WATCHDOG_INTERVAL = 1000;
+    private final long writeTimeout;
+    private final Map<Channel, Boolean> channels;
+    private final ExecutorService writers;
+    private final ScheduledExecutorService watchdog;
+    private final AtomicLong pushes;
+    private final AtomicLong stalled;
+
+    /**
+     * Initializes the {@code NotificationPusher}.
+     *
+     * @param writersNumber number of threads writing the notifications
+     * @param writeTimeout  time a write can be blocked for before its connection is closed (in milliseconds)
+     */
+    NotificationPusher(int writersNumber, long writeTimeout) {
+        this.writeTimeout = writeTimeout;
+        channels = new ConcurrentHashMap<>();
+        writers = Executors.newFixedThreadPool(Math.max(1, writersNumber), runnable -> {
+            Thread thread = new Thread(runnable, "NotificationPusherWriter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "NotificationPusherWatchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watchdog.scheduleWithFixedDelay(this::closeStalled, WATCHDOG_INTERVAL, WATCHDOG_INTERVAL, TimeUnit.MILLISECONDS);
+        pushes = new AtomicLong();
+        stalled = new AtomicLong();
+    }
+
+    /**
+     * Creates the {@code Channel} of a connection.
+     *
+     * @param writer    the routine which writes the pending notifications to the connection
+     * @param closer    the routine which closes the connection
+     * @return  the new {@code Channel}
+     */
+    Channel createChannel(Runnable writer, Runnable closer) {
+        Channel channel = new Channel(writer, closer);
+        channels.put(channel, Boolean.TRUE);
+        return channel;
+    }
+
+    /**
+     * Closes the connections whose write has been blocked for longer than the timeout. It is run by
+     * the watchdog.
+     */
+    private void closeStalled() {
+        long now = System.currentTimeMillis();
+        for (Channel channel : channels.keySet()) {
+            long since = channel.writingSince;
+            if (since > 0 && now - since > writeTimeout) {
+                channel.writingSince = 0;
+                stalled.incrementAndGet();
+                channel.closer.run();
+            }
+        }
+    }
+
+    /**
+     * Gets a printable summary of the pusher counters.
+     *
+     * @return  the counters summary
+     */
+    String stats() {
+        return String.format("inline notifications: %d connections, %d pushes scheduled, %d stalled connections closed",
+                channels.size(), pushes.get(), stalled.get());
+    }
+
+    /**
+     * The {@code Channel} class schedules the notification writes of a connection and tracks how long
+     * they have been blocked.
+     *
+     * @author Federico Gerardi
+     * @author https://azraelsec.github.io/
+     */
+    final class Channel {
+        private final AtomicBoolean pending;
+        private final AtomicBoolean scheduled;
+        private final Runnable writer;
+        private final Runnable closer;
+        private volatile long writingSince;
+
+        /**
+         * Initializes an idle {@code Channel}.
+         *
+         * @param writer    the routine which writes the pending notifications to the connection
+         * @param closer    the routine which closes the connection
+         */
+        private Channel(Runnable writer, Runnable closer) {
+            pending = new AtomicBoolean();
+            scheduled = new AtomicBoolean();
+            this.writer = writer;
+            this.closer = closer;
+            writingSince = 0;
+        }
+
+        /**
+         * Schedules the writing routine on the writers pool, unless it is already scheduled. It never blocks.
+         */
+        void schedule() {
+            pending.set(true);
+            if (!scheduled.compareAndSet(false, true)) return;
+            try {
+                writers.execute(this::run);
+                pushes.incrementAndGet();
+            } catch (RejectedExecutionException ex) {
+                scheduled.set(false);
+            }
+        }
+
+        /**
+         * Runs the writing routine until no new write has been asked for, then marks the {@code Channel}
+         * as not scheduled anymore. A write asked for right after that schedules it again.
+         */
+        private void run() {
+            do {
+                try {
+                    while (pending.getAndSet(false))
+                        writer.run();
+                } finally {
+                    scheduled.set(false);
+                }
+            } while (pending.get() && scheduled.compareAndSet(false, true));
+        }
+
+        /**
+         * Marks the beginning of a write on the connection, whichever thread it is done by.
+         */
+        void writing() {
+            writingSince = System.currentTimeMillis();
+        }
+
+        /**
+         * Marks the end of a write on the connection.
+         */
+        void written() {
+            writingSince = 0;
+        }
+
+        /**
+         * Stops watching the connection, once it does not get its notifications inline anymore.
+         */
+        void close() {
+            channels.remove(this);
+            writingSince = 0;
+        }
+    }
+}
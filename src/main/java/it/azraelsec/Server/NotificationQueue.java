@@ -0,0 +1,170 @@
+package it.azraelsec.Server;
+
+import it.azraelsec.Notification.Notification;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The {@code NotificationQueue} class stores the unread notifications of a {@code User}.
+ * <p>
+ * The queue is bounded and coalesces the duplicates: sharing the same document twice produces a single
+ * notification. When the queue is full the new notifications are just counted, and the last batch
+ * summarizes them with an "and N more" entry. The notifications are drained in batches capped both in
+ * number and in length, so that a large backlog does not end up into a single huge frame.
+ * <p>
+ * Every notification keeps the timestamp of its first occurrence, to measure its delivery latency.
+ * <p>
+ * The limits and the counters are shared by all the queues.
+ *
+ * @author Federico Gerardi
+ * @author https://azraelsec.github.io/
+ */
+final class NotificationQueue implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final int MAX_BATCH_LENGTH = 4096;
+    private static volatile int capacity = 256;
+    private static volatile int batchSize = 32;
+    private static final AtomicLong totalDepth = new AtomicLong();
+    private static final AtomicLong coalesced = new AtomicLong();
+    private static final AtomicLong overflowed = new AtomicLong();
+    private LinkedHashMap<String, Long> pendingNotifications;
+    private int overflow;
+
+    /**
+     * Initializes an empty {@code NotificationQueue}.
+     */
+    NotificationQueue() {
+        pendingNotifications = new LinkedHashMap<>();
+        overflow = 0;
+    }
+
+    /**
+     * Configures the limits of all the queues.
+     *
+     * @param newCapacity   maximum number of notifications stored for each user
+     * @param newBatchSize  maximum number of notifications sent in a single batch
+     */
+    static void configure(int newCapacity, int newBatchSize) {
+        capacity = Math.max(1, newCapacity);
+        batchSize = Math.max(1, newBatchSize);
+    }
+
+    /**
+     * Gets the maximum number of notifications sent in a single batch.
+     *
+     * @return  batch size
+     */
+    static int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Adds a notification, unless it is already queued.
+     *
+     * @param notification  notification to add
+     * @param creationTime  notification creation timestamp (in milliseconds)
+     */
+    synchronized void add(String notification, long creationTime) {
+        if (pendingNotifications.containsKey(notification)) coalesced.incrementAndGet();
+        else if (pendingNotifications.size() >= capacity) {
+            overflow++;
+            overflowed.incrementAndGet();
+        } else {
+            pendingNotifications.put(notification, creationTime);
+            totalDepth.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes and gets the oldest notifications, up to the batch limits. When the queue becomes empty
+     * and some notifications have been discarded, the batch ends with their summary.
+     *
+     * @return  the notifications batch (empty if there is none)
+     */
+    synchronized List<Notification> drainBatch() {
+        List<Notification> batch = new ArrayList<>();
+        int length = 0;
+        Iterator<Map.Entry<String, Long>> iterator = pendingNotifications.entrySet().iterator();
+        while (iterator.hasNext() && batch.size() < batchSize) {
+            Map.Entry<String, Long> notification = iterator.next();
+            if (!batch.isEmpty() && length + notification.getKey().length() > MAX_BATCH_LENGTH) break;
+            batch.add(new Notification(notification.getKey(), notification.getValue()));
+            length += notification.getKey().length() + 1;
+            iterator.remove();
+        }
+        totalDepth.addAndGet(-batch.size());
+        if (pendingNotifications.isEmpty() && overflow > 0) {
+            batch.add(new Notification("and " + overflow + " more", System.currentTimeMillis()));
+            overflow = 0;
+        }
+        return batch;
+    }
+
+    /**
+     * Gets the number of queued notifications.
+     *
+     * @return  queue size
+     */
+    synchronized int size() {
+        return pendingNotifications.size();
+    }
+
+    /**
+     * Gets the number of notifications queued by all the users.
+     *
+     * @return  total queue depth
+     */
+    static long getTotalDepth() {
+        return totalDepth.get();
+    }
+
+    /**
+     * Gets the number of notifications coalesced with a queued one.
+     *
+     * @return  coalesced notifications counter
+     */
+    static long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * Gets the number of notifications discarded because their queue was full.
+     *
+     * @return  overflowed notifications counter
+     */
+    static long getOverflowed() {
+        return overflowed.get();
+    }
+
+    /**
+     * Gets a printable summary of the counters.
+     *
+     * @return  the counters summary
+     */
+    static String stats() {
+        return String.format("notifications: %d queued, %d coalesced, %d overflowed",
+                getTotalDepth(), getCoalesced(), getOverflowed());
+    }
+
+    /**
+     * Restores the {@code NotificationQueue} from its serialized form, accounting its notifications
+     * into the total depth.
+     *
+     * @param input serialized object stream
+     * @throws IOException  if an I/O error occurs
+     * @throws ClassNotFoundException   if a serialized class cannot be found
+     */
+    private void readObject(ObjectInputStream input) throws IOException, ClassNotFoundException {
+        input.defaultReadObject();
+        if (pendingNotifications == null) pendingNotifications = new LinkedHashMap<>();
+        totalDepth.addAndGet(pendingNotifications.size());
+    }
+}
@@ -8,70 +8,142 @@ import java.util.concurrent.ConcurrentHashMap;
  * <p>
  * A {@code User} is online if exists a valid {@code String} token. This value is used all around
  * the TURING system to get retrieve information about a target {@code User}.
+ * <p>
+ * The tokens are issued by the {@code TokenAuthority} and carry the username they belong to, so
+ * they are verified without looking them up into any table: the {@code Client} sends its token with
+ * every request, so any instance sharing the key can authenticate it. The sessions are indexed by username
+ * only, so that a new login can revoke the previous session in constant time.
+ * <p>
+ * The sessions that stay idle for longer than the configured timeout are expired by a
+ * {@code SessionTimingWheel}: their records are removed and their expiration handler is run, so
+ * that the resources the session holds can be released.
  *
  * @author Federico Gerardi
  * @author https://azraelsec.github.io/
  */
 class OnlineUsersDB {
-    ConcurrentHashMap<String, OnlineUserRecord> onlineUsers;
+    private final ConcurrentHashMap<String, OnlineUserRecord> sessionsByUsername;
+    private final UsersDB usersDB;
+    private final TokenAuthority tokenAuthority;
+    private final SessionTimingWheel timingWheel;
 
     /**
-     * Initializes the underlining {@code ConcurrentHashMap}.
+     * Initializes the underlining {@code ConcurrentHashMap} and starts the {@code SessionTimingWheel}.
+     *
+     * @param usersDB   users database
+     * @param tokenAuthority    session tokens issuer
+     * @param idleTimeout   maximum idle time of a session (in milliseconds)
      */
-    OnlineUsersDB() {
-        onlineUsers = new ConcurrentHashMap<>();
+    OnlineUsersDB(UsersDB usersDB, TokenAuthority tokenAuthority, long idleTimeout) {
+        sessionsByUsername = new ConcurrentHashMap<>();
+        this.usersDB = usersDB;
+        this.tokenAuthority = tokenAuthority;
+        timingWheel = new SessionTimingWheel(idleTimeout, this::expire);
+        timingWheel.start();
     }
 
     /**
      * Logs a {@code User} instance into the {@code OnlineUsersDB} letting it pass to the online
      * state.
      * <p>
-     * Only one valid token at a time can exist but it would result senseless to look for a
-     * pre-existing {@code User} because the assignment as a key of the {@code ConcurrentHashMap}
-     * is a destructive operation anyway.
+     * Only one valid token at a time can exist: if the {@code User} already owns a session, the
+     * old one is revoked and expired.
      *
      * @param user  user reference
-     * @return  the session token or null if error occurs
+     * @return  the session record or null if error occurs
      */
-    String login(User user) {
+    OnlineUserRecord login(User user) {
         if (user == null) return null;
-        OnlineUserRecord record = new OnlineUserRecord(user);
-        // Trying to remove old values would be useless because put method already does it smoothly
-        onlineUsers.put(user.getUsername(), record);
-        return record.getToken();
+        OnlineUserRecord record = new OnlineUserRecord(user, tokenAuthority.issue(user));
+        OnlineUserRecord oldRecord = sessionsByUsername.put(user.getUsername(), record);
+        if (oldRecord != null) {
+            tokenAuthority.revoke(oldRecord.getToken());
+            oldRecord.invalidate();
+            timingWheel.expireNow(oldRecord);
+        }
+        timingWheel.schedule(record);
+        return record;
+    }
+
+    /**
+     * Logs the session out, removing its record from the {@code OnlineUsersDB} and revoking its token.
+     *
+     * @param record    session record
+     */
+    void logout(OnlineUserRecord record) {
+        if (record == null) return;
+        remove(record);
+        record.invalidate();
+    }
+
+    /**
+     * Expires the session, removing its record and running its expiration handler.
+     *
+     * @param record    session record
+     */
+    private void expire(OnlineUserRecord record) {
+        remove(record);
+        record.invalidate();
+        record.runExpirationHandler();
+    }
+
+    /**
+     * Removes the record from the index, only if it is still the actual one, and revokes its token.
+     *
+     * @param record    session record
+     */
+    private void remove(OnlineUserRecord record) {
+        sessionsByUsername.remove(record.getUser().getUsername(), record);
+        tokenAuthority.revoke(record.getToken());
     }
 
     /**
      * Gets a {@code User} object reference from a {@code String} token.
+     * <p>
+     * The token is verified by the {@code TokenAuthority}, so it does not need to have been issued
+     * by this {@code Server} instance. If it belongs to the {@code User} the caller already knows,
+     * that reference is given back without looking the username up.
      *
      * @param token session token
+     * @param knownUser user already resolved by the caller (it can be null)
      * @return  user reference or null if error occurs
      */
-    User getUserByToken(String token) {
-        for (OnlineUserRecord record : onlineUsers.values())
-            if (record.verifyToken(token)) return record.getUser();
-        return null;
+    User getUserByToken(String token, User knownUser) {
+        String username = tokenAuthority.verify(token);
+        if (username == null) return null;
+        if (knownUser != null && knownUser.getUsername().equals(username)) return knownUser;
+        return usersDB.getUserByUsername(username);
     }
 
     /**
      * The {@code OnlineUserRecord} class represents a {@code OnlineUsersDB} single record and is used to
      * relate a {@code User} object to its {@code String} session token.
+     * <p>
+     * The {@code TCPRequestHandler} keeps a reference to its own record, so that a request whose token
+     * belongs to the session's {@code User} does not need to look it up.
      *
      * @author Federico Gerardi
      * @author https://azraelsec.github.io/
      */
-    private class OnlineUserRecord {
+    static class OnlineUserRecord {
         private final User user;
         private final String token;
+        private volatile boolean valid;
+        private volatile long lastAccess;
+        private volatile Runnable expirationHandler;
 
         /**
          * Initializes {@code OnlineUserRecord}.
          *
          * @param user  user reference
+         * @param token session token
          */
-        OnlineUserRecord(User user) {
+        OnlineUserRecord(User user, String token) {
             this.user = user;
-            token = user.generateToken();
+            this.token = token;
+            valid = true;
+            lastAccess = System.currentTimeMillis();
+            expirationHandler = null;
         }
 
         /**
@@ -93,13 +165,53 @@ class OnlineUsersDB {
         }
 
         /**
-         * Verifies if the {@code String} session token is this record related or not.
+         * Checks if the session is still valid, that is it has not been replaced by a new one,
+         * logged out or expired.
          *
-         * @param token session token
-         * @return  true if {@code token} is the actual one, false otherwise
+         * @return  true if the session is valid, false otherwise
+         */
+        boolean isValid() {
+            return valid;
+        }
+
+        /**
+         * Marks the session as not valid anymore.
+         */
+        void invalidate() {
+            valid = false;
+        }
+
+        /**
+         * Updates the last access timestamp, postponing the session expiration.
+         */
+        void touch() {
+            lastAccess = System.currentTimeMillis();
+        }
+
+        /**
+         * Gets the last access timestamp.
+         *
+         * @return  last access timestamp
+         */
+        long getLastAccess() {
+            return lastAccess;
+        }
+
+        /**
+         * Sets the handler that is run when the session expires.
+         *
+         * @param expirationHandler expiration handler
+         */
+        void setExpirationHandler(Runnable expirationHandler) {
+            this.expirationHandler = expirationHandler;
+        }
+
+        /**
+         * Runs the expiration handler, if any.
          */
-        boolean verifyToken(String token) {
-            return (this.token.compareTo(token) == 0);
+        void runExpirationHandler() {
+            Runnable handler = expirationHandler;
+            if (handler != null) handler.run();
         }
     }
-}
\ No newline at end of file
+}
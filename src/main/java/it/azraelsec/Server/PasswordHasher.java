@@ -0,0 +1,258 @@
+package it.azraelsec.Server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@code PasswordHasher} class collects all the logic related to the credentials verification.
+ * <p>
+ * A password hash is the SHA-256 of the per-user salt followed by the password, iterated as many
+ * times as the work factor says. Every thread reuses its own {@code MessageDigest} instance and the
+ * iterations are computed in place, while the hashes are compared as raw bytes in constant time.
+ * <p>
+ * The hashing is meant to run on a dedicated bounded pool (see {@code runBounded}): when it is
+ * saturated the requests are rejected immediately, so that a login storm cannot starve the
+ * {@code TCPRequestHandler}s. The bulk registrations (see {@code runAllBounded}) are fed to the same
+ * pool in small chunks and never take all of its threads, so they cannot hold the logins up either.
+ *
+ * @author Federico Gerardi
+ * @author https://azraelsec.github.io/
+ */
+final class PasswordHasher {
+    private static final String ALGORITHM = "SHA-256";
+    private static final int SALT_SIZE = 16;
+    private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(PasswordHasher::newDigest);
+    private static final SecureRandom random = new SecureRandom();
+    private static volatile int workFactor = 10000;
+    private static final int BULK_CHUNK_SIZE = 32;
+    private static volatile ThreadPoolExecutor hashingPool = newPool(Runtime.getRuntime().availableProcessors(), 1024);
+    private static volatile Semaphore bulkSlots = newBulkSlots(Runtime.getRuntime().availableProcessors());
+
+    private PasswordHasher() {
+    }
+
+    /**
+     * Configures the work factor used for the new hashes and the hashing pool size.
+     *
+     * @param newWorkFactor number of hash iterations
+     * @param threads   number of hashing threads
+     * @param queueSize maximum number of pending hashing requests
+     */
+    static void configure(int newWorkFactor, int threads, int queueSize) {
+        workFactor = Math.max(1, newWorkFactor);
+        ThreadPoolExecutor oldPool = hashingPool;
+        hashingPool = newPool(Math.max(1, threads), Math.max(1, queueSize));
+        bulkSlots = newBulkSlots(Math.max(1, threads));
+        oldPool.shutdown();
+    }
+
+    /**
+     * Gets the work factor used for the new hashes.
+     *
+     * @return  number of hash iterations
+     */
+    static int getWorkFactor() {
+        return workFactor;
+    }
+
+    /**
+     * Generates a new random salt.
+     *
+     * @return  salt bytes
+     */
+    static byte[] newSalt() {
+        byte[] salt = new byte[SALT_SIZE];
+        random.nextBytes(salt);
+        return salt;
+    }
+
+    /**
+     * Hashes the password using the given salt and work factor.
+     *
+     * @param password  password to hash
+     * @param salt  user's salt
+     * @param iterations    work factor
+     * @return  the raw hash bytes
+     */
+    static byte[] hash(String password, byte[] salt, int iterations) {
+        MessageDigest md = digests.get();
+        md.reset();
+        md.update(salt);
+        md.update(password.getBytes(StandardCharsets.UTF_8));
+        byte[] hash = md.digest();
+        try {
+            for (int i = 1; i < iterations; i++) {
+                md.update(hash);
+                md.digest(hash, 0, hash.length);
+            }
+        } catch (DigestException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return hash;
+    }
+
+    /**
+     * Compares two hashes in constant time.
+     *
+     * @param expected  expected hash
+     * @param actual    actual hash
+     * @return  true if the hashes are equal, false otherwise
+     */
+    static boolean matches(byte[] expected, byte[] actual) {
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    /**
+     * Runs the task on the hashing pool and waits for its result.
+     *
+     * @param task  hashing task
+     * @param <T>   result type
+     * @return  the task result
+     * @throws RejectedExecutionException   if the hashing pool is saturated
+     */
+    static <T> T runBounded(Callable<T> task) {
+        Future<T> future = hashingPool.submit(task);
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException(ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    /**
+     * Runs all the tasks on the hashing pool and waits for their results.
+     * <p>
+     * The tasks are split into chunks of {@code BULK_CHUNK_SIZE} elements, which are handed to the pool
+     * by the calling thread as soon as a bulk slot is free. There is one slot less than the pool threads
+     * (shared by all the bulk batches), so at least one thread is always left to the interactive requests,
+     * and the chunks still to be submitted never sit in the pool queue ahead of a login.
+     *
+     * @param tasks hashing tasks
+     * @param <T>   result type
+     * @return  the tasks results, in the same order
+     * @throws RejectedExecutionException   if the hashing pool is saturated
+     */
+    static <T> List<T> runAllBounded(List<Callable<T>> tasks) {
+        ThreadPoolExecutor pool = hashingPool;
+        Semaphore slots = bulkSlots;
+        Deque<Future<List<T>>> futures = new ArrayDeque<>();
+        List<T> results = new ArrayList<>(tasks.size());
+        int next = 0;
+        try {
+            while (next < tasks.size()) {
+                if (futures.isEmpty()) slots.acquire();
+                else if (!slots.tryAcquire()) {
+                    results.addAll(futures.poll().get());
+                    continue;
+                }
+                List<Callable<T>> chunk = tasks.subList(next, Math.min(tasks.size(), next + BULK_CHUNK_SIZE));
+                futures.add(submitChunk(pool, slots, chunk));
+                next += chunk.size();
+            }
+            while (!futures.isEmpty())
+                results.addAll(futures.poll().get());
+            return results;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException(ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException(ex.getCause());
+        } finally {
+            for (Future<List<T>> future : futures)
+                future.cancel(true);
+        }
+    }
+
+    /**
+     * Submits a chunk of tasks to the hashing pool, holding a bulk slot which is released as soon as the
+     * chunk is done or cancelled.
+     *
+     * @param pool  hashing pool
+     * @param slots bulk slots the caller has acquired one of
+     * @param chunk hashing tasks
+     * @param <T>   result type
+     * @return  the chunk results future
+     * @throws RejectedExecutionException   if the hashing pool is saturated
+     */
+    private static <T> Future<List<T>> submitChunk(ThreadPoolExecutor pool, Semaphore slots, List<Callable<T>> chunk) {
+        FutureTask<List<T>> future = new FutureTask<List<T>>(() -> {
+            List<T> results = new ArrayList<>(chunk.size());
+            for (Callable<T> task : chunk)
+                results.add(task.call());
+            return results;
+        }) {
+            @Override
+            protected void done() {
+                slots.release();
+            }
+        };
+        try {
+            pool.execute(future);
+        } catch (RejectedExecutionException ex) {
+            slots.release();
+            throw ex;
+        }
+        return future;
+    }
+
+    /**
+     * Creates a new SHA-256 {@code MessageDigest}.
+     *
+     * @return  the digest instance
+     */
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Creates the slots the bulk chunks need to run: one less than the pool threads, unless the pool
+     * has got a single thread.
+     *
+     * @param threads   number of hashing threads
+     * @return  the bulk slots
+     */
+    private static Semaphore newBulkSlots(int threads) {
+        return new Semaphore(Math.max(1, threads - 1));
+    }
+
+    /**
+     * Creates the bounded hashing pool, made up by daemon threads.
+     *
+     * @param threads   number of threads
+     * @param queueSize maximum number of pending tasks
+     * @return  the hashing pool
+     */
+    private static ThreadPoolExecutor newPool(int threads, int queueSize) {
+        AtomicInteger counter = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), runnable -> {
+            Thread thread = new Thread(runnable, "PasswordHasher-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -1,29 +1,40 @@
 package it.azraelsec.Server;
 
+import it.azraelsec.Protocol.RegistrationThrottledException;
 import it.azraelsec.Protocol.RemoteRegistration;
 
 import java.rmi.RemoteException;
+import java.rmi.server.RemoteServer;
+import java.rmi.server.ServerNotActiveException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * The {@code RegistrationStub} class is a RMI Stub that allows the remote RMI client to
  * interact with the register method and to insert this way a new {@code User} object into
  * the {@code UsersDB} instance.
+ * <p>
+ * The registration attempts are limited by the {@code LoginThrottler}: a batch registration only
+ * counts as a single attempt for its source address. A throttled attempt fails with a
+ * {@code RegistrationThrottledException}, which tells the client when to retry.
  *
  * @author Federico Gerardi
  * @author https://azraelsec.github.io/
  */
 public class RegistrationStub extends UnicastRemoteObject implements RemoteRegistration {
     private UsersDB usersDB;
+    private LoginThrottler loginThrottler;
 
     /**
      * Initializes the {@code RegistrationStub}.
      *
      * @param usersDB   {@code UsersDB} reference
+     * @param loginThrottler    login and registration attempts limiter
      * @throws RemoteException  if RMI error occurs
      */
-    RegistrationStub(UsersDB usersDB) throws RemoteException {
+    RegistrationStub(UsersDB usersDB, LoginThrottler loginThrottler) throws RemoteException {
         this.usersDB = usersDB;
+        this.loginThrottler = loginThrottler;
     }
 
     /**
@@ -32,9 +43,57 @@ public class RegistrationStub extends UnicastRemoteObject implements RemoteRegis
      * @param username  user's username
      * @param password  user's password
      * @return  true if the new {@code User} has been registered, false otherwise
+     * @throws RegistrationThrottledException   if the attempt has been throttled
      */
     @Override
-    public boolean register(String username, String password) {
-        return usersDB.addNewUser(username, password) != null;
+    public boolean register(String username, String password) throws RegistrationThrottledException {
+        checkThrottled(username);
+        try {
+            return usersDB.addNewUser(username, password) != null;
+        } catch (RejectedExecutionException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Offers a remote RMI interface to register a batch of new users in a single invocation.
+     *
+     * @param usernames users' usernames
+     * @param passwords users' passwords, in the same order
+     * @return  for each entry, true if the new {@code User} has been registered, false otherwise
+     * @throws RegistrationThrottledException   if the attempt has been throttled
+     */
+    @Override
+    public boolean[] registerAll(String[] usernames, String[] passwords) throws RegistrationThrottledException {
+        checkThrottled(null);
+        try {
+            return usersDB.addNewUsers(usernames, passwords);
+        } catch (RejectedExecutionException ex) {
+            return new boolean[usernames.length];
+        }
+    }
+
+    /**
+     * Counts a registration attempt of the invoking client.
+     *
+     * @param username  target username (null to only limit the address)
+     * @throws RegistrationThrottledException   if the attempt has been throttled
+     */
+    private void checkThrottled(String username) throws RegistrationThrottledException {
+        long retryAfter = loginThrottler.tryAcquire(getClientAddress(), username);
+        if (retryAfter > 0) throw new RegistrationThrottledException(retryAfter);
+    }
+
+    /**
+     * Gets the address of the RMI client which is invoking the remote method.
+     *
+     * @return  the client address or null if it cannot be determined
+     */
+    private String getClientAddress() {
+        try {
+            return RemoteServer.getClientHost();
+        } catch (ServerNotActiveException ex) {
+            return null;
+        }
     }
 }
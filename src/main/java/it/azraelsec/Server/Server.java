@@ -1,9 +1,13 @@
 package it.azraelsec.Server;
 
 import it.azraelsec.Chat.CDAManager;
+import it.azraelsec.Chat.ChatArchiver;
 import it.azraelsec.Document.DocumentsDatabase;
+import it.azraelsec.Notification.NotificationDispatcher;
+import it.azraelsec.Notification.NotificationMetrics;
 import it.azraelsec.Protocol.RemoteRegistration;
 import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
@@ -36,14 +40,38 @@ import java.util.stream.Collectors;
 public class Server {
     private static int TCP_PORT = 1337;
     private static int RMI_PORT = 3400;
+    private static boolean RMI_ENABLED = true;
     private static String DATA_DIR = "./server_data/";
+    private static int IDLE_TIMEOUT = 30 * 60;
+    private static int TOKEN_TTL = 24 * 60 * 60;
+    private static String TOKEN_KEY = null;
+    private static int HASH_WORK_FACTOR = 10000;
+    private static int HASH_THREADS = Runtime.getRuntime().availableProcessors();
+    private static int HASH_QUEUE = 1024;
+    private static int THROTTLE_CAPACITY = 10;
+    private static int THROTTLE_REFILL = 30;
+    private static int THROTTLE_MAX_KEYS = 100000;
+    private static int NOTIFICATION_QUEUE_SIZE = 256;
+    private static int NOTIFICATION_BATCH_SIZE = 32;
+    private static int NOTIFICATION_PUSH_WRITERS = Runtime.getRuntime().availableProcessors();
+    private static int NOTIFICATION_PUSH_TIMEOUT = 30;
+    private static boolean CHAT_ARCHIVE = false;
+    private static int UDP_PORT = 1338;
+    private static boolean CHAT_RELAY = false;
+    private static int CHAT_RELAY_QUEUE = 1024;
+    private static int CHAT_RELAY_WRITERS = Runtime.getRuntime().availableProcessors();
+    private static int CHAT_RELAY_TIMEOUT = 30;
 
 
     private UsersDB usersDB;
     private DocumentsDatabase documentDatabase;
-    private final OnlineUsersDB onlineUsersDB;
+    private OnlineUsersDB onlineUsersDB;
     private final ExecutorService TCPConnectionDispatcher;
     private final CDAManager cdaManager;
+    private LoginThrottler loginThrottler;
+    private NotificationDispatcher notificationDispatcher;
+    private NotificationPusher notificationPusher;
+    private ChatRelay chatRelay;
 
     /**
      * Initializes the {@code Server}.
@@ -52,8 +80,12 @@ public class Server {
         usersDB = null;
         documentDatabase = null;
         TCPConnectionDispatcher = Executors.newCachedThreadPool();
-        onlineUsersDB = new OnlineUsersDB();
+        onlineUsersDB = null;
         cdaManager = new CDAManager();
+        loginThrottler = null;
+        notificationDispatcher = null;
+        notificationPusher = null;
+        chatRelay = null;
     }
 
     /**
@@ -71,19 +103,43 @@ public class Server {
      *
      * @param cmdOptions    command line options
      * @throws RemoteException  if RMI connection error occurs
+     * @throws IOException  if the {@code NotificationDispatcher} cannot be initialized
      */
-    private void bootstrap(Namespace cmdOptions) throws RemoteException {
+    private void bootstrap(Namespace cmdOptions) throws IOException {
         Optional.ofNullable(cmdOptions.getString("config_file")).ifPresent(this::loadConfig);
         TCP_PORT = Optional.ofNullable( cmdOptions.getInt("tcp_command_port") ).orElseGet( () -> TCP_PORT );
         RMI_PORT = Optional.ofNullable( cmdOptions.getInt("rmi_port") ).orElseGet( () -> RMI_PORT );
+        RMI_ENABLED = RMI_ENABLED && !cmdOptions.getBoolean("no_rmi");
         DATA_DIR = Optional.ofNullable( cmdOptions.getString("data_dir") ).orElseGet( () -> DATA_DIR );
+        IDLE_TIMEOUT = Optional.ofNullable( cmdOptions.getInt("idle_timeout") ).orElseGet( () -> IDLE_TIMEOUT );
         checkDataDirectory();
+        PasswordHasher.configure(HASH_WORK_FACTOR, HASH_THREADS, HASH_QUEUE);
+        NotificationQueue.configure(NOTIFICATION_QUEUE_SIZE, NOTIFICATION_BATCH_SIZE);
+        NotificationOutbox.configure(DATA_DIR + "outbox/");
         usersDB = initUsersDB();
+        loginThrottler = new LoginThrottler(THROTTLE_CAPACITY, THROTTLE_REFILL, THROTTLE_MAX_KEYS);
+        byte[] tokenKey = parseTokenKey();
+        if(TOKEN_KEY != null && tokenKey == null) System.out.println("Invalid TOKEN_KEY: a random key will be used");
+        onlineUsersDB = new OnlineUsersDB(usersDB, new TokenAuthority(tokenKey, TOKEN_TTL * 1000L), IDLE_TIMEOUT * 1000L);
         documentDatabase = initDocumentsDB();
-        RMIInit();
-        System.out.println(String.format("TCP_PORT: %s\nRMI_PORT: %s\nDATA_DIR: %s", TCP_PORT, RMI_PORT, DATA_DIR));
+        notificationDispatcher = new NotificationDispatcher();
+        notificationDispatcher.start();
+        notificationPusher = new NotificationPusher(NOTIFICATION_PUSH_WRITERS, NOTIFICATION_PUSH_TIMEOUT * 1000L);
+        if(CHAT_RELAY) chatRelay = new ChatRelay(CHAT_RELAY_QUEUE, CHAT_RELAY_WRITERS, CHAT_RELAY_TIMEOUT * 1000L);
+        else if(CHAT_ARCHIVE) {
+            ChatArchiver chatArchiver = new ChatArchiver(DATA_DIR + "chat/", UDP_PORT);
+            chatArchiver.start();
+            cdaManager.setChatArchiver(chatArchiver);
+        }
+        if(RMI_ENABLED) RMIInit();
+        System.out.println(String.format("TCP_PORT: %s\nRMI_PORT: %s\nDATA_DIR: %s\nIDLE_TIMEOUT: %s", TCP_PORT, RMI_ENABLED ? RMI_PORT : "disabled", DATA_DIR, IDLE_TIMEOUT));
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.out.println("TURING Server is shutting down...");
+            System.out.println(loginThrottler);
+            System.out.println(NotificationQueue.stats());
+            System.out.println(NotificationMetrics.stats());
+            System.out.println(notificationPusher.stats());
+            if(chatRelay != null) System.out.println(chatRelay.stats());
             TCPConnectionDispatcher.shutdown();
             storeUsersDB();
             storeDocumentsDB();
@@ -104,7 +160,7 @@ public class Server {
             while(true) {
                 Socket socket = TCPServer.accept();
                 System.out.println("New TCP connection: " + socket.getRemoteSocketAddress().toString());
-                TCPConnectionDispatcher.submit(new TCPRequestHandler(onlineUsersDB, usersDB, documentDatabase, cdaManager, socket));
+                TCPConnectionDispatcher.submit(new TCPRequestHandler(onlineUsersDB, usersDB, documentDatabase, cdaManager, loginThrottler, notificationDispatcher, notificationPusher, chatRelay, socket));
             }
         }
         catch (IOException ex) {
@@ -208,7 +264,27 @@ public class Server {
                 JSONObject configs = new JSONObject(Files.lines(new File(filePath).toPath()).collect(Collectors.joining("\n")));
                 TCP_PORT = configs.has("TCP_PORT") ? configs.getInt("TCP_PORT") : TCP_PORT;
                 RMI_PORT = configs.has("RMI_PORT") ? configs.getInt("RMI_PORT") : RMI_PORT;
+                RMI_ENABLED = configs.has("RMI_ENABLED") ? configs.getBoolean("RMI_ENABLED") : RMI_ENABLED;
                 DATA_DIR = configs.has("DATA_DIR") ? configs.getString("DATA_DIR") : DATA_DIR;
+                IDLE_TIMEOUT = configs.has("IDLE_TIMEOUT") ? configs.getInt("IDLE_TIMEOUT") : IDLE_TIMEOUT;
+                TOKEN_TTL = configs.has("TOKEN_TTL") ? configs.getInt("TOKEN_TTL") : TOKEN_TTL;
+                TOKEN_KEY = configs.has("TOKEN_KEY") ? configs.getString("TOKEN_KEY") : TOKEN_KEY;
+                HASH_WORK_FACTOR = configs.has("HASH_WORK_FACTOR") ? configs.getInt("HASH_WORK_FACTOR") : HASH_WORK_FACTOR;
+                HASH_THREADS = configs.has("HASH_THREADS") ? configs.getInt("HASH_THREADS") : HASH_THREADS;
+                HASH_QUEUE = configs.has("HASH_QUEUE") ? configs.getInt("HASH_QUEUE") : HASH_QUEUE;
+                THROTTLE_CAPACITY = configs.has("THROTTLE_CAPACITY") ? configs.getInt("THROTTLE_CAPACITY") : THROTTLE_CAPACITY;
+                THROTTLE_REFILL = configs.has("THROTTLE_REFILL") ? configs.getInt("THROTTLE_REFILL") : THROTTLE_REFILL;
+                THROTTLE_MAX_KEYS = configs.has("THROTTLE_MAX_KEYS") ? configs.getInt("THROTTLE_MAX_KEYS") : THROTTLE_MAX_KEYS;
+                NOTIFICATION_QUEUE_SIZE = configs.has("NOTIFICATION_QUEUE_SIZE") ? configs.getInt("NOTIFICATION_QUEUE_SIZE") : NOTIFICATION_QUEUE_SIZE;
+                NOTIFICATION_BATCH_SIZE = configs.has("NOTIFICATION_BATCH_SIZE") ? configs.getInt("NOTIFICATION_BATCH_SIZE") : NOTIFICATION_BATCH_SIZE;
+                NOTIFICATION_PUSH_WRITERS = configs.has("NOTIFICATION_PUSH_WRITERS") ? configs.getInt("NOTIFICATION_PUSH_WRITERS") : NOTIFICATION_PUSH_WRITERS;
+                NOTIFICATION_PUSH_TIMEOUT = configs.has("NOTIFICATION_PUSH_TIMEOUT") ? configs.getInt("NOTIFICATION_PUSH_TIMEOUT") : NOTIFICATION_PUSH_TIMEOUT;
+                CHAT_ARCHIVE = configs.has("CHAT_ARCHIVE") ? configs.getBoolean("CHAT_ARCHIVE") : CHAT_ARCHIVE;
+                UDP_PORT = configs.has("UDP_PORT") ? configs.getInt("UDP_PORT") : UDP_PORT;
+                CHAT_RELAY = configs.has("CHAT_RELAY") ? configs.getBoolean("CHAT_RELAY") : CHAT_RELAY;
+                CHAT_RELAY_QUEUE = configs.has("CHAT_RELAY_QUEUE") ? configs.getInt("CHAT_RELAY_QUEUE") : CHAT_RELAY_QUEUE;
+                CHAT_RELAY_WRITERS = configs.has("CHAT_RELAY_WRITERS") ? configs.getInt("CHAT_RELAY_WRITERS") : CHAT_RELAY_WRITERS;
+                CHAT_RELAY_TIMEOUT = configs.has("CHAT_RELAY_TIMEOUT") ? configs.getInt("CHAT_RELAY_TIMEOUT") : CHAT_RELAY_TIMEOUT;
             }
             catch(Exception ex) {
                 System.out.println("JSON parsing error for file:" + filePath);
@@ -218,6 +294,16 @@ public class Server {
         else System.out.println("Configuration file not found");
     }
 
+    /**
+     * Decodes the hex {@code TOKEN_KEY} shared by all the {@code Server} instances.
+     *
+     * @return  the key bytes or null if no valid key has been configured
+     */
+    private byte[] parseTokenKey() {
+        if(TOKEN_KEY == null || TOKEN_KEY.length() == 0) return null;
+        return Hex.decode(TOKEN_KEY);
+    }
+
     /**
      * Checks if the JSON configuration file exists and is a valid file type.
      *
@@ -228,8 +314,17 @@ public class Server {
         File configFile = new File(filePath);
         return configFile.isFile() && configFile.exists();
     }
+
+    /**
+     * Exports the {@code RegistrationStub} through the RMI registry.
+     * <p>
+     * The registration is available as {@code Commands#REGISTER} on the TCP connection too, so this
+     * listener is kept for compatibility only and can be disabled through {@code RMI_ENABLED}.
+     *
+     * @throws RemoteException  if RMI error occurs
+     */
     private void RMIInit() throws RemoteException {
-        RegistrationStub remoteObject = new RegistrationStub(usersDB);
+        RegistrationStub remoteObject = new RegistrationStub(usersDB, loginThrottler);
         LocateRegistry.createRegistry(RMI_PORT);
         Registry registry = LocateRegistry.getRegistry(RMI_PORT);
         registry.rebind(RemoteRegistration.NAME, remoteObject);
@@ -247,8 +342,10 @@ public class Server {
             .description("TURING distributed program server");
         argpars.addArgument("-t", "--tcp-command-port").help("TCP commands port").type(Integer.class);
         argpars.addArgument("-r", "--rmi-port").help("RMI communication port").type(Integer.class);
+        argpars.addArgument("--no-rmi").help("disable the RMI registration service").action(Arguments.storeTrue());
         argpars.addArgument("-d", "--data-dir").help("server data directory").type(String.class);
         argpars.addArgument("-c", "--config-file").help("server configuration file path").type(String.class);
+        argpars.addArgument("-i", "--idle-timeout").help("session idle timeout (in seconds)").type(Integer.class);
 
         Namespace ns;
 
@@ -265,5 +362,8 @@ public class Server {
         catch (RemoteException ex) {
             System.out.println("RMI Exception:" + ex.getMessage());
         }
+        catch (IOException ex) {
+            System.out.println("Notification dispatcher error:" + ex.getMessage());
+        }
     }
 }
@@ -0,0 +1,145 @@
+package it.azraelsec.Server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * The {@code SessionTimingWheel} class is a hashed timing wheel that tracks the idle time of the
+ * {@code OnlineUsersDB.OnlineUserRecord}s and expires them when they have not been used for too long.
+ * <p>
+ * Each record is placed into the bucket related to its deadline. Touching a session only updates
+ * its last access timestamp: when the wheel reaches the bucket, the record is expired if its
+ * deadline has been passed or moved to the bucket of the new deadline otherwise. This way every
+ * operation costs O(1), no matter how many sessions are tracked.
+ * <p>
+ * The records that have been invalidated in the meantime (logout) are just dropped.
+ *
+ * @author Federico Gerardi
+ * @author https://azraelsec.github.io/
+ */
+class SessionTimingWheel extends Thread {
+    private static final int WHEEL_SIZE = 512;
+    private final List<List<OnlineUsersDB.OnlineUserRecord>> buckets;
+    private final ConcurrentLinkedQueue<OnlineUsersDB.OnlineUserRecord> forcedExpirations;
+    private final long tickDuration;
+    private final long idleTimeout;
+    private final Consumer<OnlineUsersDB.OnlineUserRecord> onExpire;
+    private long lastTick;
+
+    /**
+     * Initializes the {@code SessionTimingWheel}.
+     *
+     * @param idleTimeout   maximum idle time of a session (in milliseconds)
+     * @param onExpire  expiration handler
+     */
+    SessionTimingWheel(long idleTimeout, Consumer<OnlineUsersDB.OnlineUserRecord> onExpire) {
+        this.idleTimeout = idleTimeout;
+        this.onExpire = onExpire;
+        tickDuration = Math.max(100L, idleTimeout / WHEEL_SIZE);
+        buckets = new ArrayList<>(WHEEL_SIZE);
+        for (int i = 0; i < WHEEL_SIZE; i++)
+            buckets.add(new ArrayList<>());
+        forcedExpirations = new ConcurrentLinkedQueue<>();
+        lastTick = System.currentTimeMillis() / tickDuration;
+        super.setDaemon(true);
+        super.setName("SessionTimingWheel");
+    }
+
+    /**
+     * Starts tracking a session.
+     *
+     * @param record    session record
+     */
+    void schedule(OnlineUsersDB.OnlineUserRecord record) {
+        scheduleAt(record, getDeadlineTick(record));
+    }
+
+    /**
+     * Places the record into the bucket related to the given tick.
+     *
+     * @param record    session record
+     * @param tick  target tick
+     */
+    private void scheduleAt(OnlineUsersDB.OnlineUserRecord record, long tick) {
+        List<OnlineUsersDB.OnlineUserRecord> bucket = buckets.get((int) (tick % WHEEL_SIZE));
+        synchronized (bucket) {
+            bucket.add(record);
+        }
+    }
+
+    /**
+     * Makes the session expire at the next tick, without waiting for its deadline.
+     *
+     * @param record    session record
+     */
+    void expireNow(OnlineUsersDB.OnlineUserRecord record) {
+        forcedExpirations.add(record);
+    }
+
+    /**
+     * Advances the wheel once per tick, processing every bucket the time has passed over.
+     */
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(tickDuration);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            OnlineUsersDB.OnlineUserRecord forced;
+            while ((forced = forcedExpirations.poll()) != null)
+                expire(forced);
+            long now = System.currentTimeMillis();
+            long currentTick = now / tickDuration;
+            for (; lastTick < currentTick; lastTick++)
+                processBucket(lastTick + 1, now);
+        }
+    }
+
+    /**
+     * Processes the bucket related to the given tick, expiring or rescheduling its records.
+     *
+     * @param tick  processed tick
+     * @param now   actual timestamp
+     */
+    private void processBucket(long tick, long now) {
+        List<OnlineUsersDB.OnlineUserRecord> bucket = buckets.get((int) (tick % WHEEL_SIZE));
+        List<OnlineUsersDB.OnlineUserRecord> records;
+        synchronized (bucket) {
+            if (bucket.isEmpty()) return;
+            records = new ArrayList<>(bucket);
+            bucket.clear();
+        }
+        for (OnlineUsersDB.OnlineUserRecord record : records) {
+            if (!record.isValid()) continue;
+            if (record.getLastAccess() + idleTimeout <= now) expire(record);
+            else scheduleAt(record, Math.max(getDeadlineTick(record), tick + 1));
+        }
+    }
+
+    /**
+     * Computes the tick in which the session is going to expire if nobody touches it anymore.
+     *
+     * @param record    session record
+     * @return  deadline tick
+     */
+    private long getDeadlineTick(OnlineUsersDB.OnlineUserRecord record) {
+        return (record.getLastAccess() + idleTimeout) / tickDuration;
+    }
+
+    /**
+     * Runs the expiration handler, making sure that a faulty handler cannot stop the wheel.
+     *
+     * @param record    expired session record
+     */
+    private void expire(OnlineUsersDB.OnlineUserRecord record) {
+        try {
+            onExpire.accept(record);
+        } catch (RuntimeException ex) {
+            ex.printStackTrace();
+        }
+    }
+}
@@ -1,10 +1,15 @@
 package it.azraelsec.Server;
 
 import it.azraelsec.Chat.CDAManager;
+import it.azraelsec.Chat.ChatArchiver;
+import it.azraelsec.Chat.ChatMessage;
 import it.azraelsec.Document.Document;
 import it.azraelsec.Document.DocumentsDatabase;
 import it.azraelsec.Document.Section;
-import it.azraelsec.Notification.NotificationServerThread;
+import it.azraelsec.Notification.Notification;
+import it.azraelsec.Notification.NotificationBatch;
+import it.azraelsec.Notification.NotificationDispatcher;
+import it.azraelsec.Notification.NotificationMetrics;
 import it.azraelsec.Protocol.Commands;
 import it.azraelsec.Protocol.Communication;
 import it.azraelsec.Protocol.Execution;
@@ -13,8 +18,15 @@ import it.azraelsec.Protocol.Result;
 
 import java.io.*;
 import java.net.Socket;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * The {@code TCPRequestHandler} class extends {@code Runnable} and represents a new {@code Client} connection
@@ -23,19 +35,40 @@ import java.util.Map;
  * The {@code TCPRequestHandler} instance hold the TCP command connection active since the beginning to the
  * end of the conversation between {@code Client} and {@code Server}.
  * <p>
- * The {@code NotificationServerThread} object is instanced only after a login request and is shutdown when
- * its session ends up. This ensures a consistent reverse connection structure, in which the {@code Client}
- * acts like a server and vice versa.
+ * The session is registered to the shared {@code NotificationDispatcher} only after a login request and is
+ * unregistered when it ends up. This ensures a consistent reverse connection structure, in which the
+ * {@code Client} acts like a server and vice versa. A {@code Client} which gives no notification port
+ * gets its notifications pushed on the command connection instead, between a command result and the next.
+ * The notification listener never writes to the connection itself, since it runs on the thread of whoever
+ * notifies the {@code User}: it schedules the write on the {@code NotificationPusher}, whose watchdog closes
+ * the connection if the {@code Client} does not read it.
+ * <p>
+ * When the session expires because of inactivity, the {@code OnlineUsersDB} runs the handler's expiration
+ * routine which releases the {@code Section} on editing and unregisters the notifications. Every
+ * command handler runs holding the {@code sessionLock}, so that the expiration cannot overlap a request.
+ * <p>
+ * Every request but {@code REGISTER} and {@code LOGIN} carries the session token, which is verified by
+ * the {@code TokenAuthority} before running the handler: a request is accepted only if its token is valid
+ * and, when the connection has a session of its own, only if it belongs to the session's {@code User}.
+ * <p>
+ * When the {@code Server} relays the chat, the editors of a {@code Document} publish their messages through
+ * {@code Commands#CHAT_SEND} and the {@code ChatRelay} fills their {@code Outbox}es, which are written on the
+ * command connection between a command result and the next, like the inline notifications.
  *
  * @author Federico Gerardi
  * @author https://azraelsec.github.io/
  */
 public class TCPRequestHandler implements Runnable {
     private CDAManager cdaManager;
+    private final ChatRelay chatRelay;
+    private final ChatRelay.Outbox chatOutbox;
     private OnlineUsersDB onlineUsersDB;
     private UsersDB usersDB;
+    private LoginThrottler loginThrottler;
     private DocumentsDatabase documentDatabase;
-    private String sessionToken;
+    private volatile OnlineUsersDB.OnlineUserRecord session;
+    private User requestUser;
+    private final ReentrantLock sessionLock;
     private Section editingSection;
     private Document editingDocument;
     private Map<Commands, Execution> handlers;
@@ -44,7 +77,13 @@ public class TCPRequestHandler implements Runnable {
     private DataInputStream socketInputStream;
     private DataOutputStream socketOutputStream;
 
-    private NotificationServerThread notificationThread;
+    private NotificationDispatcher notificationDispatcher;
+    private NotificationDispatcher.Registration notificationRegistration;
+    private final NotificationPusher notificationPusher;
+    private volatile NotificationPusher.Channel pushChannel;
+    private final Runnable pushListener;
+    private volatile boolean pendingPush;
+    private volatile boolean pendingChat;
 
     /**
      * Initializes the object and stores all the references to the global objects.
@@ -53,28 +92,47 @@ public class TCPRequestHandler implements Runnable {
      * @param usersDB          users database
      * @param documentDatabase documents database
      * @param cdaManager       chat dynamic address manager
+     * @param loginThrottler   login and registration attempts limiter
+     * @param notificationDispatcher   notifications dispatcher
+     * @param notificationPusher   inline notifications writer
+     * @param chatRelay        chat relay (null if the chat goes through multicast)
      * @param socket           socket
      * @throws IOException if an I/O error occurs
      */
-    TCPRequestHandler(OnlineUsersDB onlineUsersDB, UsersDB usersDB, DocumentsDatabase documentDatabase, CDAManager cdaManager, Socket socket) throws IOException {
+    TCPRequestHandler(OnlineUsersDB onlineUsersDB, UsersDB usersDB, DocumentsDatabase documentDatabase, CDAManager cdaManager, LoginThrottler loginThrottler, NotificationDispatcher notificationDispatcher, NotificationPusher notificationPusher, ChatRelay chatRelay, Socket socket) throws IOException {
         this.cdaManager = cdaManager;
+        this.chatRelay = chatRelay;
         this.onlineUsersDB = onlineUsersDB;
         this.usersDB = usersDB;
+        this.loginThrottler = loginThrottler;
+        this.notificationDispatcher = notificationDispatcher;
+        this.notificationPusher = notificationPusher;
         this.socket = socket;
         this.documentDatabase = documentDatabase;
         socketInputStream = new DataInputStream(socket.getInputStream());
         socketOutputStream = new DataOutputStream(socket.getOutputStream());
+        sessionLock = new ReentrantLock();
+        pushListener = this::pushNotifications;
+        pushChannel = null;
+        pendingPush = false;
+        chatOutbox = chatRelay != null ? chatRelay.createOutbox(this::pushChat, this::closeConnection) : null;
+        pendingChat = false;
         handlers = new HashMap<>();
-        handlers.put(Commands.LOGIN, this::onLogin);
-        handlers.put(Commands.LOGOUT, this::onLogout);
-        handlers.put(Commands.EDIT, this::onEdit);
-        handlers.put(Commands.EDIT_END, this::onEditEnd);
-        handlers.put(Commands.CREATE, this::onCreate);
-        handlers.put(Commands.SHOW_SECTION, this::onShowSection);
-        handlers.put(Commands.SHOW_DOCUMENT, this::onShowDocument);
-        handlers.put(Commands.LIST, this::onList);
-        handlers.put(Commands.SHARE, this::onShare);
-        sessionToken = null;
+        handlers.put(Commands.REGISTER, guarded(this::onRegister));
+        handlers.put(Commands.LOGIN, guarded(this::onLogin));
+        handlers.put(Commands.LOGOUT, authenticated(this::onLogout));
+        handlers.put(Commands.EDIT, authenticated(this::onEdit));
+        handlers.put(Commands.EDIT_END, authenticated(this::onEditEnd));
+        handlers.put(Commands.CREATE, authenticated(this::onCreate));
+        handlers.put(Commands.SHOW_SECTION, authenticated(this::onShowSection));
+        handlers.put(Commands.SHOW_DOCUMENT, authenticated(this::onShowDocument));
+        handlers.put(Commands.LIST, authenticated(this::onList));
+        handlers.put(Commands.SHARE, authenticated(this::onShare));
+        handlers.put(Commands.STATS, authenticated(this::onStats));
+        handlers.put(Commands.CHAT_HISTORY, authenticated(this::onChatHistory));
+        handlers.put(Commands.CHAT_SEND, authenticated(this::onChatSend));
+        session = null;
+        requestUser = null;
         editingSection = null;
         editingDocument = null;
     }
@@ -87,27 +145,105 @@ public class TCPRequestHandler implements Runnable {
         do Communication.receive(socketInputStream, socketOutputStream, handlers); while (true);
     }
 
+    /**
+     * Wraps a command handler, making it run while holding the {@code sessionLock}.
+     *
+     * @param execution command handler
+     * @return  the guarded command handler
+     */
+    private Execution guarded(Execution execution) {
+        return (args, result) -> {
+            sessionLock.lock();
+            try {
+                execution.run(args, result);
+            } finally {
+                sessionLock.unlock();
+            }
+            flushPushes();
+        };
+    }
+
+    /**
+     * Wraps a command handler which needs an authenticated {@code User}, making it run guarded. The first
+     * argument of the request is the session token: it is verified and the resolved {@code User} is kept
+     * for the time of the request, while the handler gets the remaining arguments.
+     * <p>
+     * If the connection has a session, the token has to belong to its {@code User}, whose record is
+     * touched so that it does not expire. A connection without a session can still run the requests
+     * which do not need any state on the connection.
+     *
+     * @param execution command handler
+     * @return  the authenticated command handler
+     */
+    private Execution authenticated(Execution execution) {
+        return guarded((args, result) -> {
+            OnlineUsersDB.OnlineUserRecord record = session;
+            User sessionUser = record != null && record.isValid() ? record.getUser() : null;
+            User user = onlineUsersDB.getUserByToken((String) args[0], sessionUser);
+            if (user == null) result.send(Commands.FAILURE, "You're not logged in");
+            else if (record != null && user != sessionUser) result.send(Commands.FAILURE, "The session token doesn't belong to this connection");
+            else {
+                if (record != null) record.touch();
+                requestUser = user;
+                try {
+                    execution.run(Arrays.copyOfRange(args, 1, args.length), result);
+                } finally {
+                    requestUser = null;
+                }
+            }
+        });
+    }
+
+    /**
+     * {@code Commands#REGISTER} handler.
+     * <p>
+     * Registers a new {@code User} using the {@code String} username and password given as command
+     * invocation arguments. It is the TCP counterpart of the {@code RegistrationStub} RMI method.
+     *
+     * @param args     connection arguments
+     * @param sendback connection response
+     */
+    private void onRegister(Object[] args, Result sendback) {
+        String username = (String) args[0];
+        if (isThrottled(username, sendback)) return;
+        try {
+            if (usersDB.addNewUser(username, (String) args[1]) != null) {
+                System.out.println("New user registered: " + username);
+                sendback.send(Commands.SUCCESS, "User registered");
+            } else sendback.send(Commands.FAILURE, "Error in user registration: user probably already exists");
+        } catch (RejectedExecutionException ex) {
+            sendback.send(Commands.FAILURE, "Registration failed: server busy, retry later");
+        }
+    }
+
     /**
      * {@code Commands#LOGIN} handler.
      * <p>
      * Tries to authenticate the given {@code User} through its {@code String} username and password
-     * as command invocation arguments. If the authentication succeeds a {@code NotificationServerThread}
-     * is run and a new {@code String} session token generated and sent back to the {@code Client}.
+     * as command invocation arguments. If the authentication succeeds the notifications are started and a
+     * new {@code String} session token generated and sent back to the {@code Client}.
      *
      * @param args     connection arguments
      * @param sendback connection response
      */
     private void onLogin(Object[] args, Result sendback) {
-        if (!isSessionAlive()) {
+        if (session == null) {
+            if (isThrottled((String) args[0], sendback)) return;
             User user;
-            if ((user = usersDB.doLogin((String) args[0], (String) args[1])) != null) {
-                String token;
-                if ((token = onlineUsersDB.login(user)) != null) {
-                    notificationThread = new NotificationServerThread(user, socket.getInetAddress().getHostName(), (Integer) args[2]);
-                    notificationThread.start();
-                    sessionToken = token;
+            try {
+                user = usersDB.doLogin((String) args[0], (String) args[1]);
+            } catch (RejectedExecutionException ex) {
+                sendback.send(Commands.FAILURE, "Login failed: server busy, retry later");
+                return;
+            }
+            if (user != null) {
+                OnlineUsersDB.OnlineUserRecord record;
+                if ((record = onlineUsersDB.login(user)) != null) {
+                    record.setExpirationHandler(() -> onSessionExpired(record));
+                    session = record;
+                    startNotifications(user, (Integer) args[2]);
                     System.out.println("New user logged in: " + args[0]);
-                    sendback.send(Commands.SUCCESS, token);
+                    sendback.send(Commands.SUCCESS, record.getToken());
                 } else sendback.send(Commands.FAILURE, "Login failed: token generation failed");
             } else sendback.send(Commands.FAILURE, "Login failed: authentication error");
         } else sendback.send(Commands.FAILURE, "You're already logged in");
@@ -116,18 +252,18 @@ public class TCPRequestHandler implements Runnable {
     /**
      * {@code Commands#LOGOUT} handler.
      * <p>
-     * Kills the actual session and stops the {@code NotificationServerThread}.
+     * Kills the actual session, releases the {@code Section} on editing (and the related chat) and stops
+     * its notifications.
      *
      * @param args     connection arguments
      * @param sendback connection response
      */
     private void onLogout(Object[] args, Result sendback) {
-        sessionToken = null;
-        notificationThread.close();
-        try {
-            notificationThread.join();
-        } catch (InterruptedException ignore) {
-        }
+        OnlineUsersDB.OnlineUserRecord record = session;
+        onlineUsersDB.logout(record);
+        session = null;
+        releaseEditing();
+        if (record != null) stopNotifications(record.getUser());
         System.out.println("Client's gone out");
         sendback.send(Commands.SUCCESS, "Good-bye");
     }
@@ -138,26 +274,29 @@ public class TCPRequestHandler implements Runnable {
      * Tries to get the permission to exclusively edit the target {@code Section} or manage the situation in which
      * another {@code User} is editing it. The actual {@code Section} version is sent (streamed) to the {@code Client}.
      * <p>
-     * A new multicast address is requested to the {@code CDAManager} and sent back to the {@code Client}.
+     * A new multicast address is requested to the {@code CDAManager} and sent back to the {@code Client}. When the
+     * chat is relayed, the address sent back is 0 and the session joins the {@code Document}'s room instead.
+     * <p>
+     * The connection has to own the session, since the editing state is released when it expires.
      *
      * @param args  connection arguments
      * @param sendback  connection response
      */
     private void onEdit(Object[] args, Result sendback) {
-        if (isSessionAlive()) {
+        if (isSessionAlive() && session != null) {
             String documentName = (String) args[0];
             Document doc;
             int sectionNumber = (Integer) args[1];
             if ((doc = documentDatabase.getDocumentByName(documentName)) != null) {
                 User user;
-                if ((user = onlineUsersDB.getUserByToken(sessionToken)) != null) {
+                if ((user = getSessionUser()) != null) {
                     if (doc.canAccess(user)) {
                         if (editingSection == null) {
                             Section section;
                             if ((section = doc.getSection(sectionNumber)) != null) {
                                 if (section.tryToSetEditing(user)) {
-                                    Long multicastAddr = cdaManager.getChatAddress(doc);
-                                    if (multicastAddr > 0) {
+                                    long multicastAddr = chatRelay == null ? cdaManager.acquireChatAddress(doc) : 0;
+                                    if (chatRelay != null || multicastAddr > 0) {
                                         try {
                                             InputStream fileStream = section.getFileInputStream();
                                             sendback.send(Commands.SUCCESS, String.valueOf(multicastAddr));
@@ -165,14 +304,22 @@ public class TCPRequestHandler implements Runnable {
                                                 Communication.receiveAndSendStream(socketInputStream, socketOutputStream, fileStream);
                                                 editingSection = section;
                                                 editingDocument = doc;
+                                                if (chatRelay != null) chatRelay.join(doc.getName(), chatOutbox);
                                             } catch (IOException ex) {
                                                 sendback.send(Commands.FAILURE, ex.getMessage());
                                                 fileStream.close();
+                                                section.tryToSetEditing(null);
+                                                releaseChat(doc);
                                             }
                                         } catch (IOException ex) {
                                             sendback.send(Commands.FAILURE, "Section's reading error: " + ex.getMessage());
+                                            section.tryToSetEditing(null);
+                                            releaseChat(doc);
                                         }
-                                    } else sendback.send(Commands.FAILURE, "No multicast address available");
+                                    } else {
+                                        section.tryToSetEditing(null);
+                                        sendback.send(Commands.FAILURE, "No multicast address available");
+                                    }
                                 } else sendback.send(Commands.FAILURE, "Someone's already editing this file");
                             } else sendback.send(Commands.FAILURE, "Section's not found");
                         } else sendback.send(Commands.FAILURE, "You can modify one section at time");
@@ -188,7 +335,7 @@ public class TCPRequestHandler implements Runnable {
      * Ends the editing session up and receives the new {@code Section} version from the {@code Client}.
      * <p>
      * Imposes to {@code CDAManager} to check if the actual multicast group should be considered as free and
-     * reallocated for another editing group or not.
+     * reallocated for another editing group or not, or leaves the {@code Document}'s room if the chat is relayed.
      *
      * @param args  connection arguments
      * @param sendback  connection response
@@ -202,7 +349,7 @@ public class TCPRequestHandler implements Runnable {
                     sendback.send(Commands.SUCCESS, "Send me new version");
                     fileStream = editingSection.getWriteStream();
                     Communication.readFileFromSocket(socketInputStream, fileStream);
-                    cdaManager.checkRemove(editingDocument);
+                    releaseChat(editingDocument);
                     editingSection = null;
                     editingDocument = null;
                 } catch (IOException ex) {
@@ -228,7 +375,7 @@ public class TCPRequestHandler implements Runnable {
      */
     private void onCreate(Object[] args, Result sendback) {
         if (isSessionAlive()) {
-            User user = onlineUsersDB.getUserByToken(sessionToken);
+            User user = getSessionUser();
             if (user != null) {
                 try {
                     documentDatabase.createNewDocument(Server.getDataDirectoryPath(), (Integer) args[1], (String) args[0], user);
@@ -256,7 +403,7 @@ public class TCPRequestHandler implements Runnable {
             int sectionNumber = (Integer) args[1];
             if ((doc = documentDatabase.getDocumentByName(documeentName)) != null) {
                 User user;
-                if ((user = onlineUsersDB.getUserByToken(sessionToken)) != null) {
+                if ((user = getSessionUser()) != null) {
                     if (doc.canAccess(user)) {
                         Section section;
                         if ((section = doc.getSection(sectionNumber)) != null) {
@@ -289,7 +436,7 @@ public class TCPRequestHandler implements Runnable {
     private void onShowDocument(Object[] args, Result sendback) {
         if (isSessionAlive()) {
             User user;
-            if ((user = onlineUsersDB.getUserByToken(sessionToken)) != null) {
+            if ((user = getSessionUser()) != null) {
                 Document doc;
                 String documentName = (String) args[0];
                 if ((doc = documentDatabase.getDocumentByName(documentName)) != null) {
@@ -328,7 +475,7 @@ public class TCPRequestHandler implements Runnable {
     private void onList(Object[] args, Result sendback) {
         if (isSessionAlive()) {
             User user;
-            if ((user = onlineUsersDB.getUserByToken(sessionToken)) != null) {
+            if ((user = getSessionUser()) != null) {
                 String[] documentsNames = documentDatabase.getAllDocumentsNames(user);
                 if (documentsNames.length > 0) {
                     String encodedNames = String.join(",", documentsNames);
@@ -350,7 +497,7 @@ public class TCPRequestHandler implements Runnable {
     private void onShare(Object[] args, Result sendback) {
         if (isSessionAlive()) {
             User user;
-            if ((user = onlineUsersDB.getUserByToken(sessionToken)) != null) {
+            if ((user = getSessionUser()) != null) {
                 User targetUser;
                 if ((targetUser = usersDB.getUserByUsername((String) args[0])) != null) {
                     Document doc;
@@ -367,12 +514,307 @@ public class TCPRequestHandler implements Runnable {
     }
 
     /**
-     * Checks if the session is alive or not: if the {@code User} has been already authenticated and a valid
-     * {@code String} token exists.
+     * Checks if the attempt to log in or to register the given username has to be throttled and, in
+     * that case, sends back a {@code Commands#FAILURE} telling the {@code Client} when to retry.
+     *
+     * @param username  target username
+     * @param sendback  connection response
+     * @return  true if the attempt has been throttled, false otherwise
+     */
+    private boolean isThrottled(String username, Result sendback) {
+        long retryAfter = loginThrottler.tryAcquire(socket.getInetAddress().getHostAddress(), username);
+        if (retryAfter > 0) {
+            sendback.send(Commands.FAILURE, "Too many attempts: retry after " + ((retryAfter + 999) / 1000) + " seconds");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks if the request has been authenticated or not: if its {@code String} token is valid.
      *
-     * @return true if the session is already existing, false otherwise
+     * @return true if the request has an authenticated {@code User}, false otherwise
      */
     private boolean isSessionAlive() {
-        return sessionToken != null;
+        return requestUser != null;
+    }
+
+    /**
+     * Expiration routine of the session: releases the {@code Section} on editing (and the related
+     * chat address) and stops its notifications.
+     * <p>
+     * It is run by the {@code OnlineUsersDB} and does nothing if the expired session is not the
+     * actual one anymore.
+     *
+     * @param record    expired session record
+     */
+    private void onSessionExpired(OnlineUsersDB.OnlineUserRecord record) {
+        sessionLock.lock();
+        try {
+            if (session != record) return;
+            session = null;
+            releaseEditing();
+            stopNotifications(record.getUser());
+            System.out.println("Session expired: " + record.getUser().getUsername());
+        } finally {
+            sessionLock.unlock();
+        }
+    }
+
+    /**
+     * {@code Commands#STATS} handler.
+     * <p>
+     * Sends back the server metrics: login throttling, notification queues depth, notification send
+     * latency and delivery failures, inline notification writes, and the chat relay counters if it is enabled.
+     *
+     * @param args  connection arguments
+     * @param sendback  connection response
+     */
+    private void onStats(Object[] args, Result sendback) {
+        if (isSessionAlive()) {
+            String stats = String.join("\n", loginThrottler.toString(), NotificationQueue.stats(), NotificationMetrics.stats(), notificationPusher.stats());
+            sendback.send(Commands.SUCCESS, chatRelay != null ? stats + "\n" + chatRelay.stats() : stats);
+        } else sendback.send(Commands.FAILURE, "You're not logged in");
+    }
+
+    /**
+     * {@code Commands#CHAT_HISTORY} handler.
+     * <p>
+     * Sends back a page of the archived chat of a {@code Document}, between two timestamps (in milliseconds).
+     * The first line of the result is the lower bound of the next page, or (-1) if there is none, and every
+     * following line is a message.
+     *
+     * @param args  connection arguments
+     * @param sendback  connection response
+     */
+    private void onChatHistory(Object[] args, Result sendback) {
+        if (isSessionAlive()) {
+            User user;
+            if ((user = getSessionUser()) != null) {
+                ChatArchiver chatArchiver = cdaManager.getChatArchiver();
+                if (chatArchiver != null) {
+                    Document doc;
+                    if ((doc = documentDatabase.getDocumentByName((String) args[0])) != null) {
+                        if (doc.canAccess(user)) {
+                            try {
+                                long from = Long.parseLong((String) args[1]);
+                                long to = Long.parseLong((String) args[2]);
+                                List<ChatMessage> page = new ArrayList<>();
+                                long next = chatArchiver.readHistory(doc.getName(), from, to, page);
+                                SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+                                StringBuilder history = new StringBuilder(Long.toString(next));
+                                for (ChatMessage message : page)
+                                    history.append('\n').append('[').append(dateFormat.format(new Date(message.getTime()))).append("] ").append(message);
+                                sendback.send(Commands.SUCCESS, history.toString());
+                            } catch (NumberFormatException ex) {
+                                sendback.send(Commands.FAILURE, "Invalid time range");
+                            } catch (IOException ex) {
+                                sendback.send(Commands.FAILURE, "Chat history reading error: " + ex.getMessage());
+                            }
+                        } else sendback.send(Commands.FAILURE, "You haven't got permissions to read this chat");
+                    } else sendback.send(Commands.FAILURE, "Document doesn't exist");
+                } else sendback.send(Commands.FAILURE, "Chat history is disabled");
+            } else sendback.send(Commands.FAILURE, "User's token cannot be found");
+        } else sendback.send(Commands.FAILURE, "You're not logged in");
+    }
+
+    /**
+     * {@code Commands#CHAT_SEND} handler.
+     * <p>
+     * Relays a message to all the editors of the {@code Document} the session is editing, itself included.
+     *
+     * @param args  connection arguments
+     * @param sendback  connection response
+     */
+    private void onChatSend(Object[] args, Result sendback) {
+        if (isSessionAlive()) {
+            if (chatRelay != null) {
+                if (editingDocument != null) {
+                    User user;
+                    if ((user = getSessionUser()) != null) {
+                        String text = (String) args[0];
+                        if (text.length() <= ChatRelay.MAX_MESSAGE_LENGTH) {
+                            chatRelay.publish(editingDocument.getName(), user.getUsername(), text);
+                            sendback.send(Commands.SUCCESS, "Message sent");
+                        } else sendback.send(Commands.FAILURE, "Message too long: " + ChatRelay.MAX_MESSAGE_LENGTH + " characters at most");
+                    } else sendback.send(Commands.FAILURE, "User's token cannot be found");
+                } else sendback.send(Commands.FAILURE, "You are not editing any file");
+            } else sendback.send(Commands.FAILURE, "Chat relay is disabled: use the multicast chat");
+        } else sendback.send(Commands.FAILURE, "You're not logged in");
+    }
+
+    /**
+     * Releases the {@code Section} on editing, if any, and the related chat address or room. It runs
+     * holding the {@code sessionLock}.
+     */
+    private void releaseEditing() {
+        if (editingSection == null) return;
+        editingSection.tryToSetEditing(null);
+        releaseChat(editingDocument);
+        editingSection = null;
+        editingDocument = null;
+    }
+
+    /**
+     * Releases the chat of a {@code Document} the session is not editing anymore: its multicast address, or
+     * its room if the chat is relayed.
+     *
+     * @param document  target document
+     */
+    private void releaseChat(Document document) {
+        if (chatRelay != null) chatRelay.leave(document.getName(), chatOutbox);
+        else cdaManager.releaseChatAddress(document);
+    }
+
+    /**
+     * Starts the notifications of the session. If the {@code Client} gave a notification port, the
+     * session is registered to the {@code NotificationDispatcher}, which connects back to it; otherwise
+     * the notifications are pushed inline on this command connection.
+     *
+     * @param user  session user
+     * @param notificationPort  client notification listening port (0 or less for inline notifications)
+     */
+    private void startNotifications(User user, int notificationPort) {
+        if (notificationPort > 0)
+            notificationRegistration = notificationDispatcher.register(user, socket.getInetAddress().getHostName(), notificationPort);
+        else {
+            pushChannel = notificationPusher.createChannel(this::flushPushes, this::closeConnection);
+            user.setNotificationListener(pushListener);
+            pendingPush = true;
+        }
+    }
+
+    /**
+     * Stops the notifications of the session, whichever way they are delivered.
+     *
+     * @param user  session user
+     */
+    private void stopNotifications(User user) {
+        if (notificationRegistration != null) {
+            notificationDispatcher.unregister(notificationRegistration);
+            notificationRegistration = null;
+        }
+        user.removeNotificationListener(pushListener);
+        if (pushChannel != null) {
+            pushChannel.close();
+            pushChannel = null;
+        }
+        pendingPush = false;
+    }
+
+    /**
+     * Marks the unread notifications to be pushed inline on the command connection and schedules the
+     * write on the {@code NotificationPusher}. It is run by the notifying thread, so it never blocks.
+     */
+    private void pushNotifications() {
+        pendingPush = true;
+        NotificationPusher.Channel channel = pushChannel;
+        if (channel != null) channel.schedule();
+    }
+
+    /**
+     * Writes the relayed chat frames queued into the {@code Outbox} on the command connection. It is run
+     * by the {@code ChatRelay} writers.
+     */
+    private void pushChat() {
+        pendingChat = true;
+        flushPushes();
+    }
+
+    /**
+     * Sends the pending pushes: notifications and relayed chat frames. It is run by the handler after
+     * every command, by the {@code NotificationPusher} writers and by the {@code ChatRelay} writers.
+     * <p>
+     * A push must never be interleaved with a command result, so it is only sent if the
+     * {@code sessionLock} is free; otherwise it is left pending and sent by the handler as soon as
+     * the running command ends. The flags are checked again after releasing the lock, so that a push
+     * requested while another one was being sent is not left behind.
+     */
+    private void flushPushes() {
+        while ((pendingPush || pendingChat) && sessionLock.tryLock()) {
+            try {
+                if (pendingPush) {
+                    pendingPush = false;
+                    writeNotifications();
+                }
+                if (pendingChat) {
+                    pendingChat = false;
+                    writeChat();
+                }
+            } finally {
+                sessionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Writes the unread notifications on the command connection, acknowledging every batch once it has
+     * been written. If the connection is broken the batch is restored into the {@code User} and the
+     * writing stops. Every write is watched by the {@code NotificationPusher}, whichever thread it is done by.
+     * It runs holding the {@code sessionLock}.
+     */
+    private void writeNotifications() {
+        OnlineUsersDB.OnlineUserRecord record = session;
+        NotificationPusher.Channel channel = pushChannel;
+        if (record == null || !record.isValid() || channel == null) return;
+        NotificationBatch batch;
+        while (!(batch = record.getUser().getUnreadNotifications()).isEmpty()) {
+            List<Notification> notifications = batch.getNotifications();
+            String creationTimes = Notification.joinCreationTimes(notifications);
+            channel.writing();
+            try {
+                socketOutputStream.write(Communication.encode(Commands.NEW_NOTIFICATIONS, Notification.joinDocuments(notifications), creationTimes).array());
+                socketOutputStream.flush();
+            } catch (IOException ex) {
+                batch.restore();
+                NotificationMetrics.recordFailures(notifications.size());
+                return;
+            } finally {
+                channel.written();
+            }
+            batch.acknowledge();
+            NotificationMetrics.recordSent(creationTimes);
+        }
+    }
+
+    /**
+     * Writes the relayed chat frames on the command connection, every batch drained from the
+     * {@code Outbox} through a single write, until it is empty. If the connection is broken the session
+     * leaves the room, so that it is not relayed any message anymore. It runs holding the {@code sessionLock}.
+     */
+    private void writeChat() {
+        do {
+            byte[] batch;
+            while ((batch = chatOutbox.drain()) != null) {
+                try {
+                    socketOutputStream.write(batch);
+                    socketOutputStream.flush();
+                } catch (IOException ex) {
+                    if (editingDocument != null) chatRelay.leave(editingDocument.getName(), chatOutbox);
+                    else chatOutbox.clear();
+                }
+            }
+        } while (chatOutbox.finish());
+    }
+
+    /**
+     * Closes the command connection, so that a write blocked on it fails. It is run by the {@code ChatRelay}
+     * and {@code NotificationPusher} watchdogs when the {@code Client} does not read its pushes anymore.
+     */
+    private void closeConnection() {
+        System.out.println("Closing a stalled connection: " + socket.getRemoteSocketAddress());
+        try {
+            socket.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    /**
+     * Gets the {@code User} the actual request has been authenticated as.
+     *
+     * @return  the request user or null if the request has not been authenticated
+     */
+    private User getSessionUser() {
+        return requestUser;
     }
 }
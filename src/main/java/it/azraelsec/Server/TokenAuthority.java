@@ -0,0 +1,142 @@
+package it.azraelsec.Server;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@code TokenAuthority} class issues and verifies the self-validating session tokens.
+ * <p>
+ * A token has the form {@code username.expiry.signature}, where the signature is the HMAC-SHA256
+ * (hex encoded) of the first two fields computed with the server key. Any {@code Server} instance
+ * that shares the same key can verify a token on its own, without any shared table or lock.
+ * <p>
+ * The tokens that are logged out before their expiry are stored into a revocation set, which only
+ * needs to keep them until their expiry: after that moment they would be rejected anyway.
+ *
+ * @author Federico Gerardi
+ * @author https://azraelsec.github.io/
+ */
+class TokenAuthority {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int PURGE_PERIOD = 256;
+    private final SecretKeySpec key;
+    private final long tokenTTL;
+    private final ThreadLocal<Mac> macs;
+    private final ConcurrentHashMap<String, Long> revokedTokens;
+    private final AtomicInteger revocationsCounter;
+
+    /**
+     * Initializes the {@code TokenAuthority}.
+     *
+     * @param key   server key (if null, a random one is generated)
+     * @param tokenTTL  token time to live (in milliseconds)
+     */
+    TokenAuthority(byte[] key, long tokenTTL) {
+        if (key == null) {
+            key = new byte[32];
+            new SecureRandom().nextBytes(key);
+        }
+        this.key = new SecretKeySpec(key, ALGORITHM);
+        this.tokenTTL = tokenTTL;
+        macs = ThreadLocal.withInitial(this::newMac);
+        revokedTokens = new ConcurrentHashMap<>();
+        revocationsCounter = new AtomicInteger();
+    }
+
+    /**
+     * Issues a new token for the {@code User}.
+     *
+     * @param user  user reference
+     * @return  the signed session token
+     */
+    String issue(User user) {
+        String payload = user.getUsername() + "." + (System.currentTimeMillis() + tokenTTL);
+        return payload + "." + sign(payload);
+    }
+
+    /**
+     * Verifies the token: its signature must be valid, it must not be expired nor revoked.
+     *
+     * @param token session token
+     * @return  the token's username if it is valid, null otherwise
+     */
+    String verify(String token) {
+        if (token == null) return null;
+        int signatureIndex = token.lastIndexOf('.');
+        if (signatureIndex <= 0) return null;
+        int expiryIndex = token.lastIndexOf('.', signatureIndex - 1);
+        if (expiryIndex <= 0) return null;
+        long expiry;
+        try {
+            expiry = Long.parseLong(token.substring(expiryIndex + 1, signatureIndex));
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        if (expiry <= System.currentTimeMillis()) return null;
+        String payload = token.substring(0, signatureIndex);
+        byte[] expected = sign(payload).getBytes(StandardCharsets.US_ASCII);
+        byte[] actual = token.substring(signatureIndex + 1).getBytes(StandardCharsets.US_ASCII);
+        if (!MessageDigest.isEqual(expected, actual)) return null;
+        if (revokedTokens.containsKey(token)) return null;
+        return token.substring(0, expiryIndex);
+    }
+
+    /**
+     * Revokes the token until its expiry.
+     *
+     * @param token session token
+     */
+    void revoke(String token) {
+        int signatureIndex = token.lastIndexOf('.');
+        int expiryIndex = token.lastIndexOf('.', signatureIndex - 1);
+        try {
+            long expiry = Long.parseLong(token.substring(expiryIndex + 1, signatureIndex));
+            if (expiry > System.currentTimeMillis()) revokedTokens.put(token, expiry);
+        } catch (NumberFormatException | IndexOutOfBoundsException ignore) {
+        }
+        if (revocationsCounter.incrementAndGet() % PURGE_PERIOD == 0) purgeRevocations();
+    }
+
+    /**
+     * Removes the revoked tokens which are expired in the meantime.
+     */
+    private void purgeRevocations() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Long>> iterator = revokedTokens.entrySet().iterator();
+        while (iterator.hasNext())
+            if (iterator.next().getValue() <= now) iterator.remove();
+    }
+
+    /**
+     * Computes the hex encoded HMAC of the payload.
+     *
+     * @param payload   signed data
+     * @return  the hex signature
+     */
+    private String sign(String payload) {
+        return Hex.encode(macs.get().doFinal(payload.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Creates a new {@code Mac} instance initialized with the server key.
+     *
+     * @return  the {@code Mac} instance
+     */
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -1,13 +1,25 @@
 package it.azraelsec.Server;
 
+import it.azraelsec.Notification.Notification;
+import it.azraelsec.Notification.NotificationBatch;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * The {@code User} class represents a user into the TURING system and has got all the methods
  * to retrieve all its notifications and to verify its credentials.
+ * <p>
+ * The password is stored as raw hash bytes together with its own salt and the work factor used
+ * to compute it, so that the work factor can be raised without invalidating the existing users.
+ * <p>
+ * The unread notifications are kept into a bounded {@code NotificationQueue} and fetched in batches.
+ * While the user is offline (no notification listener is set) they are appended to the on-disk
+ * {@code NotificationOutbox} instead, which is drained before the queue. A batch of notifications is
+ * only removed for good once its sender acknowledges it.
  *
  * @author Federico Gerardi
  * @author https://azraelsec.github.io/
@@ -15,8 +27,18 @@ import java.util.ArrayList;
 public class User implements Serializable {
     private static final long serialVersionUID = 1L;
     private final String username;
-    private final String password;
-    private final ArrayList<String> unreadNotifications;
+    private byte[] passwordHash;
+    private byte[] salt;
+    private int workFactor;
+    // hex SHA-256 stored by the previous versions, only read to migrate them
+    private String password;
+    private NotificationQueue notificationQueue;
+    // unbounded list stored by the previous versions, only read to migrate them
+    private ArrayList<String> unreadNotifications;
+    private transient volatile Runnable notificationListener;
+    // offset the next outbox read starts from (null to start from the first record not delivered)
+    private transient Long outboxCursor;
+    private transient int outboxGeneration;
 
     /**
      * Initializes a {@code User} object.
@@ -26,8 +48,12 @@ public class User implements Serializable {
      */
     public User(String username, String password) {
         this.username = username;
-        this.password = getHashedString(password);
-        unreadNotifications = new ArrayList<>();
+        salt = PasswordHasher.newSalt();
+        workFactor = PasswordHasher.getWorkFactor();
+        passwordHash = PasswordHasher.hash(password, salt, workFactor);
+        this.password = null;
+        notificationQueue = new NotificationQueue();
+        unreadNotifications = null;
     }
 
     /**
@@ -46,65 +72,164 @@ public class User implements Serializable {
      * @return  true if {@code password} is the right one, false otherwise
      */
     boolean checkPassword(String password) {
-        String hashedPassword = getHashedString(password);
-        if(hashedPassword == null) return false;
-        return hashedPassword.compareTo(this.password) == 0;
+        if(passwordHash == null) return false;
+        return PasswordHasher.matches(passwordHash, PasswordHasher.hash(password, salt, workFactor));
+    }
+
+    /**
+     * Gets the next batch of unread notifications to this user associated, starting from the ones
+     * stored into the {@code NotificationOutbox}. It needs to be called until it returns an empty
+     * batch to fetch all of them.
+     * <p>
+     * The batch has to be acknowledged once it has been sent, or restored if the delivery failed:
+     * the batches read from the {@code NotificationOutbox} are acknowledged there in order, while the
+     * ones drained from the queue are put back into it (or into the outbox, if the user is offline).
+     *
+     * @return  the notifications batch
+     */
+    public NotificationBatch getUnreadNotifications() {
+        synchronized (notificationQueue) {
+            if(NotificationOutbox.hasPending(username)) {
+                NotificationOutbox.Batch batch = NotificationOutbox.readBatch(username, outboxCursor != null ? outboxCursor : -1, NotificationQueue.getBatchSize());
+                if(batch != null) {
+                    long end = batch.getEnd();
+                    int generation = outboxGeneration;
+                    outboxCursor = end;
+                    return new NotificationBatch(batch.getNotifications(), () -> acknowledgeStored(end, generation), () -> restoreStored(generation));
+                }
+            }
+            List<Notification> notifications = notificationQueue.drainBatch();
+            return new NotificationBatch(notifications, null, () -> restoreQueued(notifications));
+        }
     }
 
     /**
-     * Generates a valid token starting from user's password and actual timestamp (used
-     * like a salt value).
+     * Acknowledges the notifications read from the {@code NotificationOutbox} up to the given offset.
+     * If the log has been rewritten since they have been read, nothing is done.
      *
-     * @return  a valid {@code String} session token
+     * @param end   end offset of the delivered records
+     * @param generation    log generation the records have been read from
      */
-    String generateToken() {
-        String tokenString = password + System.currentTimeMillis();
-        return getHashedString(tokenString);
+    private void acknowledgeStored(long end, int generation) {
+        synchronized (notificationQueue) {
+            if(generation != outboxGeneration) return;
+            boolean lastRead = outboxCursor != null && outboxCursor == end;
+            if(NotificationOutbox.acknowledge(username, end, lastRead)) {
+                outboxGeneration++;
+                outboxCursor = null;
+            }
+        }
     }
 
     /**
-     * Gets all the unread notifications to this user associated.
+     * Makes the notifications read from the {@code NotificationOutbox} and not acknowledged be read
+     * again from the first one not delivered.
      *
-     * @return  notifications strings array
+     * @param generation    log generation the records have been read from
      */
-    public ArrayList<String> getUnreadNotifications() {
-        synchronized(unreadNotifications) {
-            ArrayList<String> unreadNotifications = new ArrayList<>(this.unreadNotifications);
-            this.unreadNotifications.clear();
-            return unreadNotifications;
+    private void restoreStored(int generation) {
+        synchronized (notificationQueue) {
+            if(generation == outboxGeneration) outboxCursor = null;
         }
     }
 
     /**
-     * Add a new notification value to the unread ones.
+     * Puts the notifications drained from the queue back: into the queue itself, or into the
+     * {@code NotificationOutbox} if the user has gone offline in the meantime.
+     *
+     * @param notifications notifications not delivered
+     */
+    private void restoreQueued(List<Notification> notifications) {
+        synchronized (notificationQueue) {
+            for(Notification notification : notifications) {
+                if(notificationListener == null && NotificationOutbox.append(username, notification.getDocument(), notification.getCreationTime()))
+                    continue;
+                notificationQueue.add(notification.getDocument(), notification.getCreationTime());
+            }
+        }
+    }
+
+    /**
+     * Sets the listener to run every time a new notification is pushed. The {@code NotificationOutbox}
+     * is read again from the first notification not delivered, in case a previous session left some
+     * batches not acknowledged.
+     *
+     * @param listener  notification listener
+     */
+    public void setNotificationListener(Runnable listener) {
+        synchronized (notificationQueue) {
+            notificationListener = listener;
+            outboxCursor = null;
+        }
+    }
+
+    /**
+     * Removes the notification listener, only if it is still the given one. The notifications not
+     * delivered yet are moved into the {@code NotificationOutbox}.
+     *
+     * @param listener  notification listener to remove
+     */
+    public void removeNotificationListener(Runnable listener) {
+        synchronized (notificationQueue) {
+            if(notificationListener != listener) return;
+            notificationListener = null;
+            if(!NotificationOutbox.isEnabled()) return;
+            List<Notification> batch;
+            List<Notification> failed = new ArrayList<>();
+            while(!(batch = notificationQueue.drainBatch()).isEmpty())
+                for(Notification notification : batch)
+                    if(!NotificationOutbox.append(username, notification.getDocument(), notification.getCreationTime()))
+                        failed.add(notification);
+            for(Notification notification : failed)
+                notificationQueue.add(notification.getDocument(), notification.getCreationTime());
+        }
+    }
+
+    /**
+     * Add a new notification value to the unread ones, stamped with its creation time, and signals
+     * the listener, if any. If there is no listener the notification is stored into the
+     * {@code NotificationOutbox}.
      *
      * @param doc   new document which user has access to
      */
     void pushNewNotification(String doc) {
-        synchronized (unreadNotifications) {
-            unreadNotifications.add(doc);
+        long creationTime = System.currentTimeMillis();
+        Runnable listener;
+        synchronized (notificationQueue) {
+            listener = notificationListener;
+            if(listener == null && NotificationOutbox.append(username, doc, creationTime)) return;
+            notificationQueue.add(doc, creationTime);
         }
+        if(listener != null) listener.run();
     }
 
     /**
-     * Hashes the input {@code String} generating a new one encrypted in SHA-256 format.
+     * Restores the {@code User} from its serialized form.
+     * <p>
+     * The users stored by the previous versions only have the unsalted hex SHA-256 of their
+     * password: it is converted to raw bytes with an empty salt and a single iteration, which
+     * produce exactly the same hash. Their unread notifications are moved into a new
+     * {@code NotificationQueue}.
      *
-     * @param toHash    string to hash
-     * @return  the SHA-256 string hash
+     * @param input serialized object stream
+     * @throws IOException  if an I/O error occurs
+     * @throws ClassNotFoundException   if a serialized class cannot be found
      */
-    private String getHashedString(String toHash) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            byte[] hashBytes =  md.digest(toHash.getBytes());
-            
-            StringBuilder sb = new StringBuilder();
-            for (byte b : hashBytes) {
-                sb.append(String.format("%02x", b));
-            }
-            return sb.toString();
+    private void readObject(ObjectInputStream input) throws IOException, ClassNotFoundException {
+        input.defaultReadObject();
+        if(passwordHash == null && password != null) {
+            passwordHash = Hex.decode(password);
+            salt = new byte[0];
+            workFactor = 1;
+            password = null;
+        }
+        if(notificationQueue == null) {
+            notificationQueue = new NotificationQueue();
+            if(unreadNotifications != null)
+                for(String notification : unreadNotifications)
+                    notificationQueue.add(notification, System.currentTimeMillis());
+            unreadNotifications = null;
         }
-        catch(NoSuchAlgorithmException ignore){}
-        return null;
     }
 
     /**
@@ -1,8 +1,14 @@
 package it.azraelsec.Server;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The {@code UsersDB} class stores and manages all the data related to the {@code User}s instances
@@ -10,53 +16,94 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * and session token initializing too.
  * <p>
  * The {@code User}'s username must be a unique identifier, so cannot exist two instances with the
- * same username.
+ * same username. The users are indexed by username inside a {@code ConcurrentHashMap}: lookups
+ * never block and the registration relies on its atomic {@code putIfAbsent} to avoid that two
+ * concurrent requests could register the same username.
  *
  * @author Federico Gerardi
  * @author https://azraelsec.github.io/
  */
 class UsersDB implements Serializable {
     private static final long serialVersionUID = 1L;
-    private final ArrayList<User> users;
-    private final ReentrantReadWriteLock mutex;
+    private ConcurrentHashMap<String, User> usersIndex;
 
     /**
      * Initializes the environment.
      */
     UsersDB() {
-        users = new ArrayList<>();
-        mutex = new ReentrantReadWriteLock();
+        usersIndex = new ConcurrentHashMap<>();
     }
 
     /**
      * Logs the user into system through its username and password credentials, retrieving
      * its object reference.
+     * <p>
+     * The password is verified on the {@code PasswordHasher} bounded pool.
+     *
      * @param username user's username
      * @param password  user's password
      * @return  the user object if exists and the credentials are valid, false otherwise
+     * @throws java.util.concurrent.RejectedExecutionException  if the hashing pool is saturated
      */
     User doLogin(String username, String password) {
         User user = getUserByUsername(username);
         if(user != null)
-            return user.checkPassword(password) ? user : null;
+            return PasswordHasher.runBounded(() -> user.checkPassword(password)) ? user : null;
         return null;
     }
 
     /**
      * Registers a new {@code User} storing its data into the {@code UsersDB} if the input
      * credentials do not exist yet.
+     * <p>
+     * The availability check is performed before hashing the password just to skip useless work,
+     * but the insertion itself is the only one that decides which request wins. The password is
+     * hashed on the {@code PasswordHasher} bounded pool.
      *
      * @param username  user's username
      * @param password  user's password
      * @return  new user reference or null if that username is not available
+     * @throws java.util.concurrent.RejectedExecutionException  if the hashing pool is saturated
      */
     User addNewUser(String username, String password) {
         if(!isUsernameAvailable(username)) return null;
-        User newUser = new User(username, password);
-        mutex.writeLock().lock();
-        users.add(newUser);
-        mutex.writeLock().unlock();
-        return newUser;
+        User newUser = PasswordHasher.runBounded(() -> new User(username, password));
+        return usersIndex.putIfAbsent(username, newUser) == null ? newUser : null;
+    }
+
+    /**
+     * Registers a batch of new {@code User}s.
+     * <p>
+     * The usernames which are already taken (or repeated within the batch) are discarded before
+     * hashing anything, then the passwords are hashed in parallel on the {@code PasswordHasher}
+     * bounded pool and finally the new users are inserted in a single pass.
+     *
+     * @param usernames users' usernames
+     * @param passwords users' passwords, in the same order
+     * @return  for each entry, true if the user has been registered, false otherwise
+     * @throws IllegalArgumentException if the arrays have got different lengths
+     * @throws java.util.concurrent.RejectedExecutionException  if the hashing pool is saturated
+     */
+    boolean[] addNewUsers(String[] usernames, String[] passwords) {
+        if(usernames.length != passwords.length) throw new IllegalArgumentException("Usernames and passwords number mismatch");
+        boolean[] results = new boolean[usernames.length];
+        Set<String> batchUsernames = new HashSet<>();
+        List<Integer> candidates = new ArrayList<>();
+        List<Callable<User>> tasks = new ArrayList<>();
+        for(int i = 0; i < usernames.length; i++) {
+            String username = usernames[i];
+            String password = passwords[i];
+            if(username != null && password != null && isUsernameAvailable(username) && batchUsernames.add(username)) {
+                candidates.add(i);
+                tasks.add(() -> new User(username, password));
+            }
+        }
+        List<User> newUsers = PasswordHasher.runAllBounded(tasks);
+        for(int i = 0; i < newUsers.size(); i++) {
+            User newUser = newUsers.get(i);
+            results[candidates.get(i)] = usersIndex.putIfAbsent(newUser.getUsername(), newUser) == null;
+        }
+        return results;
     }
 
     /**
@@ -66,7 +113,7 @@ class UsersDB implements Serializable {
      * @return  true if does not exist any user with that username, false otherwise
      */
     private boolean isUsernameAvailable(String username) {
-        return getUserByUsername(username) == null;
+        return !usersIndex.containsKey(username);
     }
 
     /**
@@ -76,14 +123,29 @@ class UsersDB implements Serializable {
      * @return  related user's object if exists, null otherwise
      */
     User getUserByUsername(String username) {
-        mutex.readLock().lock();
-        for (User user : users) {
-            if(user.getUsername().compareTo(username) == 0) {
-                mutex.readLock().unlock();
-                return user;
-            }
+        return usersIndex.get(username);
+    }
+
+    /**
+     * Restores the {@code UsersDB} from its serialized form.
+     * <p>
+     * Databases stored by previous versions keep the users inside a {@code List} field
+     * named {@code users}: in that case the index is rebuilt from it.
+     *
+     * @param input serialized object stream
+     * @throws IOException  if an I/O error occurs
+     * @throws ClassNotFoundException   if a serialized class cannot be found
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream input) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = input.readFields();
+        usersIndex = (ConcurrentHashMap<String, User>) fields.get("usersIndex", null);
+        if(usersIndex == null) {
+            usersIndex = new ConcurrentHashMap<>();
+            List<User> legacyUsers = (List<User>) fields.get("users", null);
+            if(legacyUsers != null)
+                for(User user : legacyUsers)
+                    usersIndex.putIfAbsent(user.getUsername(), user);
         }
-        mutex.readLock().unlock();
-        return null;
     }
-}
\ No newline at end of file
+}